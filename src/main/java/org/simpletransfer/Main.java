@@ -6,12 +6,17 @@ import org.simpletransfer.models.ConfigGroups;
 import org.simpletransfer.models.CredentialType;
 import org.simpletransfer.models.Parent;
 import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.services.HostLimits;
 import org.simpletransfer.services.RemoteClientFactory;
 import org.simpletransfer.services.SourceFTPTransfer;
 import org.simpletransfer.services.SourceLocalTransfer;
 import org.simpletransfer.utils.ConfigParser;
+import org.simpletransfer.utils.DedupIndex;
+import org.simpletransfer.utils.HandledFiles;
+import org.simpletransfer.utils.TransferJournal;
 import org.simpletransfer.utils.Util;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -36,7 +41,7 @@ public class Main {
                 synchronized public void accept(List<String> fileList, String hostname) {
                     fileList.forEach(fileName -> {
                         String in = INBOUND_FOLDER.concat(hostname).concat("\\").concat(fileName);
-                        String archive = INBOUND_FOLDER_ARCHIVE.concat(hostname).concat("\\").concat(fileName);
+                        String archive = INBOUND_FOLDER_ARCHIVE.concat(hostname);
 
                         //Local type transfers bypass the staging folder. Their folders won't exist at this point.
                         //This is basically to prevent an exception being thrown for them.
@@ -50,6 +55,8 @@ public class Main {
                 }
             };
 
+            DedupIndex dedupIndex = openDedupIndex();
+
             List<ConfigGroups> remoteSourceConfigGroups = new ArrayList<>();
             List<ConfigGroups> localSourceConfigGroups = new ArrayList<>();
             SourceFTPTransfer sourceFTPTransfer;
@@ -67,27 +74,51 @@ public class Main {
                 }
             }
 
+            //Shared so a host reached by both kinds of source is held to one bandwidth and connection budget
+            HostLimits hostLimits = new HostLimits(config.maxBytesPerSecond());
+            TransferJournal journal = remoteSourceConfigGroups.isEmpty() ? null : openJournal();
             if(!remoteSourceConfigGroups.isEmpty()){
-                sourceFTPTransfer = new SourceFTPTransfer
+                SourceFTPTransfer.Builder builder = new SourceFTPTransfer
                         .Builder()
                         .withLogger(logger)
                         .withBaseInboundFolder(INBOUND_FOLDER)
                         .withInterval(config.interval())
                         .withTimeUnit(config.timeUnit())
-                        .withScheduler(Executors.newScheduledThreadPool(remoteSourceConfigGroups.size()))
-                        .withRemoteClientFactory(new RemoteClientFactory(logger, fileMover, null, null, null))
-                        .build();
+                        .withUploadedFilesConsumer(fileMover)
+                        .withDedupIndex(dedupIndex)
+                        .withJournal(journal)
+                        .withRemoteClientFactory(new RemoteClientFactory(logger, null, null, null, null, journal, hostLimits));
+                if(config.virtualThreads()){
+                    //One timer thread keeps time for every source, the transfers themselves block on virtual threads
+                    builder.withScheduler(Executors.newSingleThreadScheduledExecutor())
+                            .withTaskExecutor(Executors.newVirtualThreadPerTaskExecutor())
+                            .withStageExecutor(Executors.newVirtualThreadPerTaskExecutor())
+                            .withUploadExecutor(Executors.newVirtualThreadPerTaskExecutor());
+                }else{
+                    builder.withScheduler(Executors.newScheduledThreadPool(remoteSourceConfigGroups.size()))
+                            .withStageExecutor(Executors.newCachedThreadPool())
+                            .withUploadExecutor(Executors.newCachedThreadPool());
+                }
+                sourceFTPTransfer = builder.build();
                 sourceFTPTransfer.startTransfer(remoteSourceConfigGroups);
             } else {
                 sourceFTPTransfer = null;
             }
 
+            HandledFiles handledFiles = localSourceConfigGroups.isEmpty() ? null : openHandledFiles();
             if(!localSourceConfigGroups.isEmpty()){
                 sourceLocalTransfer = new SourceLocalTransfer
                         .Builder()
                         .withLogger(logger)
-                        .withRemoteClientFactory(new RemoteClientFactory(logger, fileMover, null, null, null))
-                        .withExecutorService(Executors.newFixedThreadPool(localSourceConfigGroups.size()))
+                        .withRemoteClientFactory(new RemoteClientFactory(logger, fileMover, null, null, null, null, hostLimits))
+                        .withDedupIndex(dedupIndex)
+                        .withHandledFiles(handledFiles)
+                        .withVerifyExecutor(config.virtualThreads()
+                                ? Executors.newVirtualThreadPerTaskExecutor()
+                                : Executors.newCachedThreadPool())
+                        .withUploadExecutor(config.virtualThreads()
+                                ? Executors.newVirtualThreadPerTaskExecutor()
+                                : Executors.newCachedThreadPool())
                         .build();
                 sourceLocalTransfer.startTransfer(config.configCollection());
             } else {
@@ -102,10 +133,75 @@ public class Main {
                 if(sourceLocalTransfer != null){
                     sourceLocalTransfer.stopTransfer();
                 }
+
+                if(dedupIndex != null){
+                    try {
+                        dedupIndex.close();
+                    } catch (IOException e) {
+                        logger.error("Error while closing dedup index. Message: {}", e.getMessage());
+                    }
+                }
+
+                if(journal != null){
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        logger.error("Error while closing transfer journal. Message: {}", e.getMessage());
+                    }
+                }
+
+                if(handledFiles != null){
+                    try {
+                        handledFiles.close();
+                    } catch (IOException e) {
+                        logger.error("Error while closing handled files record. Message: {}", e.getMessage());
+                    }
+                }
             }));
         }
     }
 
+    /**
+     * Opens the dedup index if any group uses it. Without it every group transfers as if deduplicate was off.
+     */
+    private DedupIndex openDedupIndex(){
+        if(config.configCollection().stream().noneMatch(ConfigGroups::deduplicate)){
+            return null;
+        }
+        try {
+            return new DedupIndex(Path.of(DedupIndex.DEFAULT_FILE),
+                    config.dedupIndexSlots() != null && config.dedupIndexSlots() > 0 ? config.dedupIndexSlots() : DedupIndex.DEFAULT_SLOTS,
+                    config.dedupTreeHashChunkBytes() != null ? config.dedupTreeHashChunkBytes() : 0);
+        } catch (IOException e) {
+            logger.error("Unable to open dedup index, duplicates will be transferred. Message: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the transfer journal. Without it a restart delivers everything still in staging to every destination again.
+     */
+    private TransferJournal openJournal(){
+        try {
+            return new TransferJournal(Path.of(TransferJournal.DEFAULT_FILE));
+        } catch (IOException e) {
+            logger.error("Unable to open transfer journal, transfers won't be journaled. Message: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the record of handled local files. Without it local sources aren't reconciled, only new files are seen.
+     */
+    private HandledFiles openHandledFiles(){
+        try {
+            return new HandledFiles(Path.of(HandledFiles.DEFAULT_FILE), HandledFiles.DEFAULT_SLOTS);
+        } catch (IOException e) {
+            logger.error("Unable to open handled files record, local sources won't be reconciled. Message: {}", e.getMessage());
+            return null;
+        }
+    }
+
     private void initChecks(){
         //create directories using hostname
         for (ConfigGroups configGroups : config.configCollection()) {
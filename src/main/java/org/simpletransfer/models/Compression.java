@@ -0,0 +1,9 @@
+package org.simpletransfer.models;
+
+/**
+ * How a server's transfers are compressed on the way.
+ * NEGOTIATE asks the server for transfer compression, MODE Z for FTP and FTPS and zlib for SFTP, and falls back to
+ * sending raw when it doesn't support it. The files themselves arrive unchanged.
+ * GZIP compresses uploads into a gzip file named after the original plus .gz, whatever the server supports.
+ */
+public enum Compression {NONE, NEGOTIATE, GZIP}
@@ -1,5 +1,33 @@
 package org.simpletransfer.models;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-public record ConfigGroups(ServerConfig source, List<ServerConfig> destinations) {}
+/**
+ * A source and the destinations its files are delivered to.
+ * interval and timeUnit are optional and override the global schedule in {@link Parent} for this source.
+ * maxParallelUploads caps how many destinations are uploaded to at the same time. Unset means all of them.
+ * relay streams remote source files straight to the destinations instead of staging them on disk first.
+ * When relayFallbackToStaging is also set, files that fail to relay go through the staging folder in the same run.
+ * deduplicate skips sending a file to a destination that has already received the same content.
+ * priority and weight decide who goes first when sources compete for the same destination host: higher priority
+ * classes always first, and within a class each source gets a share of the transfers in proportion to its weight.
+ * Unset means NORMAL and 1. Local and remote sources are scheduled separately, each only competes with sources of
+ * its own kind.
+ * fileOrder picks which of the source's waiting files are uploaded first. Unset means ARRIVAL.
+ */
+public record ConfigGroups(ServerConfig source, List<ServerConfig> destinations, Integer interval, TimeUnit timeUnit,
+                           Integer maxParallelUploads, boolean relay, boolean relayFallbackToStaging, boolean deduplicate,
+                           Priority priority, Integer weight, FileOrder fileOrder) {
+    public ConfigGroups {
+        if(priority == null){
+            priority = Priority.NORMAL;
+        }
+        if(weight == null || weight < 1){
+            weight = 1;
+        }
+        if(fileOrder == null){
+            fileOrder = FileOrder.ARRIVAL;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.simpletransfer.models;
+
+/**
+ * Outcome of delivering one batch of files to a single destination.
+ */
+public record DestinationResult(ServerConfig destination, boolean success, String message) {
+    public static DestinationResult success(ServerConfig destination){
+        return new DestinationResult(destination, true, null);
+    }
+
+    public static DestinationResult failure(ServerConfig destination, String message){
+        return new DestinationResult(destination, false, message);
+    }
+}
@@ -0,0 +1,6 @@
+package org.simpletransfer.models;
+
+/**
+ * Order in which a source's staged files are uploaded once more of them are waiting than can be uploaded at once.
+ */
+public enum FileOrder {ARRIVAL, SMALLEST_FIRST, OLDEST_FIRST}
@@ -0,0 +1,19 @@
+package org.simpletransfer.models;
+
+/**
+ * Where the adaptive concurrency limit of one host currently stands.
+ *
+ * @param host           hostname and port
+ * @param limit          transfers allowed to run against the host at the same time
+ * @param maxLimit       the most the limit can grow to, the host's maxConnections
+ * @param inFlight       transfers running against the host right now
+ * @param succeeded      transfers that finished without an error in total
+ * @param failed         transfers that failed in total
+ * @param bytesPerSecond smoothed throughput of a single transfer to the host
+ */
+public record HostConcurrency(String host, int limit, int maxLimit, int inFlight, long succeeded, long failed, double bytesPerSecond) {
+    @Override
+    public String toString() {
+        return "%s: %d/%d running (max %d), %d ok, %d failed, %.0f B/s".formatted(host, inFlight, limit, maxLimit, succeeded, failed, bytesPerSecond);
+    }
+}
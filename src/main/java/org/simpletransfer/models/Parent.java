@@ -3,4 +3,18 @@ package org.simpletransfer.models;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-public record Parent(List<ConfigGroups> configCollection, int interval, TimeUnit timeUnit) {}
\ No newline at end of file
+/**
+ * Top level of config.json.
+ *
+ * @param virtualThreads run transfers, uploads and verification on virtual threads, with a single timer thread
+ *                       doing the scheduling, instead of platform thread pools
+ * @param dedupIndexSlots size of the dedup index used by groups with deduplicate set, only read when the index is
+ *                        first created. Unset means {@link org.simpletransfer.utils.DedupIndex#DEFAULT_SLOTS}
+ * @param dedupTreeHashChunkBytes identify content in the dedup index by tree hashes over chunks of this many bytes,
+ *                                so a large file is hashed on every core. Unset means plain SHA-256, which downloads
+ *                                compute as they go
+ * @param maxBytesPerSecond bandwidth for all hosts together, up and down combined. Unset means unlimited, per host
+ *                          limits are set in each server's options
+ */
+public record Parent(List<ConfigGroups> configCollection, int interval, TimeUnit timeUnit, boolean virtualThreads,
+                     Integer dedupIndexSlots, Long maxBytesPerSecond, Long dedupTreeHashChunkBytes) {}
\ No newline at end of file
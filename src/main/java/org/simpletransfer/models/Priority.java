@@ -0,0 +1,7 @@
+package org.simpletransfer.models;
+
+/**
+ * Priority class of a {@link ConfigGroups} entry. Transfers of a higher class always go before those of a lower one,
+ * so BULK only gets what HIGH and NORMAL leave over.
+ */
+public enum Priority {HIGH, NORMAL, BULK}
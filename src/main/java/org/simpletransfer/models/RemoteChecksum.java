@@ -0,0 +1,9 @@
+package org.simpletransfer.models;
+
+/**
+ * A checksum computed by the server.
+ *
+ * @param algorithm MessageDigest algorithm name (SHA-256, SHA-1, MD5, ...) or CRC32
+ * @param value     lower case hex
+ */
+public record RemoteChecksum(String algorithm, String value) {}
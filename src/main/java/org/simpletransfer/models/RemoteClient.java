@@ -1,14 +1,69 @@
 package org.simpletransfer.models;
 
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.StagedFile;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface RemoteClient {
     void connect() throws IOException;
     void disconnect() throws IOException;
     boolean isConnected();
+    /**
+     * Round trip to the server (NOOP, keepalive) to check that an idle connection is still usable.
+     */
+    boolean isAlive();
+    /**
+     * Uploads a file, or every file in a folder, into remotePath. Throws when the server rejects a file, the files
+     * before it stay uploaded.
+     */
     void upload(String localPath, String remotePath) throws IOException;
-    void download(String localPath, String remotePath) throws IOException;
+    /**
+     * Uploads already mapped staged files into remotePath. Unlike {@link #upload}, it doesn't notify the uploaded files consumer.
+     */
+    void uploadStaged(List<StagedFile> stagedFiles, String remotePath) throws IOException;
+    default void download(String localPath, String remotePath) throws IOException {
+        download(localPath, remotePath, _ -> {});
+    }
+    /**
+     * Like {@link #download(String, String)}, calling downloadedFile with the name of each file as soon as it is
+     * complete in localPath, so it can be passed on while the rest are still downloading. downloadedFile may be
+     * called from several threads at once and may block to hold the download back.
+     */
+    void download(String localPath, String remotePath, Consumer<String> downloadedFile) throws IOException;
+    /**
+     * Opens a single remote file for reading. The stream carries the file's bytes unchanged, FTP clients read in
+     * binary mode. The client can't be used for anything else until the stream is closed.
+     */
+    InputStream openRead(String remotePath) throws IOException;
+    /**
+     * Like {@link #openRead(String)}, starting offset bytes into the file.
+     */
+    InputStream openRead(String remotePath, long offset) throws IOException;
+    /**
+     * Creates or truncates a single remote file for writing, in binary mode on FTP. The client can't be used for
+     * anything else until the stream is closed, and the upload only counts as done once close() returns normally.
+     */
+    OutputStream openWrite(String remotePath) throws IOException;
+    /**
+     * Asks the server to checksum a remote file (FTP HASH/XSHA256/XSHA1/XMD5/XCRC, SFTP check-file).
+     * Empty when the server has no way to do that.
+     */
+    Optional<RemoteChecksum> remoteChecksum(String remotePath) throws IOException;
+    /**
+     * Size of a remote file in bytes, or -1 if it doesn't exist.
+     */
+    long remoteSize(String remotePath) throws IOException;
+    /**
+     * Size and modification time of a remote file, the same way its folder's listing reports them.
+     * Empty if it doesn't exist.
+     */
+    Optional<ListingCache.Entry> stat(String remotePath) throws IOException;
     void createDirectory(String directoryPath) throws IOException;
     List<FileInfo> listContents(String path) throws IOException;
     void delete(String path) throws IOException;
@@ -1,3 +1,9 @@
 package org.simpletransfer.models;
 
-public record ServerConfig(Credentials credentials, String folderPath) {}
\ No newline at end of file
+public record ServerConfig(Credentials credentials, String folderPath, TransferOptions options) {
+    public ServerConfig {
+        if(options == null){
+            options = TransferOptions.defaults();
+        }
+    }
+}
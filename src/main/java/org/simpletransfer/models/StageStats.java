@@ -0,0 +1,19 @@
+package org.simpletransfer.models;
+
+/**
+ * How one stage of a source's transfer pipeline has been doing since the previous snapshot.
+ * The bottleneck is the stage that is busy most of the time while the queue in front of it is full.
+ *
+ * @param stage       download, upload or archive
+ * @param queued      files waiting in front of the stage, always 0 for the download stage which has no queue
+ * @param capacity    size of that queue, once it is full the stage before it waits
+ * @param processed   files the stage has finished in total
+ * @param perSecond   files finished per second since the previous snapshot
+ * @param utilization share of the stage's worker time spent working since the previous snapshot, 0 to 1
+ */
+public record StageStats(String stage, int queued, int capacity, long processed, double perSecond, double utilization) {
+    @Override
+    public String toString() {
+        return "%s: %d/%d queued, %d done, %.1f/s, %.0f%% busy".formatted(stage, queued, capacity, processed, perSecond, utilization * 100);
+    }
+}
@@ -0,0 +1,68 @@
+package org.simpletransfer.models;
+
+/**
+ * Optional per-server tuning. Anything left out of the config falls back to the defaults below.
+ *
+ * @param parallelism      how many files of one upload/download call move at the same time (SFTP only)
+ * @param separateSessions open a separate SSH session per parallel stream instead of a channel on the
+ *                         main session, for servers that limit channels per session
+ * @param resume           continue interrupted uploads and downloads from where they stopped instead of from zero
+ * @param segmentThreshold files of at least this many bytes are downloaded in segments over several connections,
+ *                         0 turns segmented downloads off
+ * @param segments         how many connections a segmented download uses
+ * @param verify           check uploads to this server against a checksum computed by the server, or the file size
+ *                         when the server can't compute one
+ * @param quietPeriodMillis for local sources, how long a new file's size and mtime must stay unchanged before it is
+ *                          picked up. 0 means the default of 2 seconds, a negative value picks files up as soon as they appear
+ * @param requireExclusiveLock for local sources, also wait until the file can be locked exclusively
+ * @param recursive        for local sources, also watch every subfolder, including ones created later
+ * @param maxBytesPerSecond bandwidth for this server's host, up and down combined, 0 means unlimited
+ * @param maxConnections   how many pooled destination connections to this server's host may be transferring at the
+ *                         same time, 0 means the default of 4. The lowest value set for a host wins. A source's own
+ *                         connections are sized by parallelism and segments instead
+ * @param bundleThreshold  staged files smaller than this many bytes are streamed into one zip bundle per batch instead
+ *                         of being uploaded one by one, 0 turns bundling off. Remote destinations only
+ * @param maxBundleBytes   a bundle is closed once its files add up to this many bytes, 0 means the default of 64MB
+ * @param maxBundleAgeMillis how long the upload stage may wait for more files to fill a bundle after the first one
+ *                           arrives, 0 means it doesn't wait
+ * @param unpackBundles    for local destinations, extract bundles made by bundleThreshold into the folder instead of
+ *                         copying the zip
+ * @param compression      compress transfers to and from this server, see {@link Compression}. Unset means NONE
+ */
+public record TransferOptions(int parallelism, boolean separateSessions, boolean resume, long segmentThreshold, int segments,
+                              boolean verify, long quietPeriodMillis, boolean requireExclusiveLock, boolean recursive,
+                              long maxBytesPerSecond, int maxConnections, long bundleThreshold, long maxBundleBytes,
+                              long maxBundleAgeMillis, boolean unpackBundles, Compression compression) {
+    public static final long DEFAULT_QUIET_PERIOD_MILLIS = 2000;
+    public static final long DEFAULT_MAX_BUNDLE_BYTES = 64L * 1024 * 1024;
+
+    public TransferOptions {
+        if(parallelism < 1){
+            parallelism = 1;
+        }
+        if(segments < 1){
+            segments = 4;
+        }
+        if(quietPeriodMillis == 0){
+            quietPeriodMillis = DEFAULT_QUIET_PERIOD_MILLIS;
+        }
+        if(maxBundleBytes <= 0){
+            maxBundleBytes = DEFAULT_MAX_BUNDLE_BYTES;
+        }
+        if(compression == null){
+            compression = Compression.NONE;
+        }
+    }
+
+    public boolean isBundled(long fileSize){
+        return bundleThreshold > 0 && fileSize < bundleThreshold;
+    }
+
+    public boolean isSegmented(long fileSize){
+        return segmentThreshold > 0 && segments > 1 && fileSize >= segmentThreshold;
+    }
+
+    public static TransferOptions defaults(){
+        return new TransferOptions(1, false, false, 0, 4, false, DEFAULT_QUIET_PERIOD_MILLIS, false, false, 0, 0, 0, DEFAULT_MAX_BUNDLE_BYTES, 0, false, Compression.NONE);
+    }
+}
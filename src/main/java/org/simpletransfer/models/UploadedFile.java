@@ -0,0 +1,11 @@
+package org.simpletransfer.models;
+
+/**
+ * A file as it was sent to a destination, with the hash taken of its bytes on the way.
+ *
+ * @param name      file name in the destination folder
+ * @param size      bytes written
+ * @param algorithm MessageDigest algorithm name or CRC32
+ * @param digest    lower case hex
+ */
+public record UploadedFile(String name, long size, String algorithm, String digest) {}
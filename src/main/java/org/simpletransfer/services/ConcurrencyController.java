@@ -0,0 +1,238 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.ConfigGroups;
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.HostConcurrency;
+import org.simpletransfer.models.Priority;
+import org.simpletransfer.models.ServerConfig;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many transfers run against each host at the same time and adapts that limit with AIMD: every transfer
+ * that finishes at a normal speed raises the limit by 1/limit, so about one more slot per round of transfers, and
+ * an error or a transfer far slower than usual halves it. A host starts at {@link #INITIAL_LIMIT} and never goes
+ * above its maxConnections, since the pool wouldn't hand out more connections than that anyway.
+ * <p>
+ * Only one decrease is made per round: transfers that were already running when the limit was cut don't cut it
+ * again, they were started under the old limit and are expected to suffer from it.
+ * <p>
+ * Transfers waiting for a host are granted by priority class first. Within a class they are granted by weighted fair
+ * queueing across sources: each transfer is tagged with the virtual time it would finish if its source got a share of
+ * the host proportional to its weight, counting its bytes, and the lowest tag goes first. A source with 100k files
+ * queued therefore can't hold back a small one, it only gets its share.
+ */
+final class ConcurrencyController {
+    static final int INITIAL_LIMIT = 2;
+    private static final double MIN_LIMIT = 1;
+    private static final double DECREASE_FACTOR = 0.5;
+    // A transfer this many times slower per byte than the average counts as a latency spike
+    private static final double SPIKE_FACTOR = 3;
+    private static final double SMOOTHING = 0.2;
+    private static final int WARMUP_SAMPLES = 3;
+    // Transfers smaller than this are dominated by round trips, their speed says little about the host
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    private final Logger logger;
+    private final int defaultMaxLimit;
+    private final Map<String, HostController> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * A running transfer, hand it back through {@link #release}.
+     */
+    record Ticket(HostController host, long startNanos) {}
+
+    /**
+     * Who a transfer is for when it competes for a host: the source it belongs to, its class and its weight.
+     */
+    record Share(String flow, Priority priority, int weight) {
+        static Share of(ConfigGroups configGroup) {
+            Credentials source = configGroup.source().credentials();
+            return new Share(source.hostname() + ":" + source.port() + "/" + configGroup.source().folderPath(),
+                    configGroup.priority(), configGroup.weight());
+        }
+    }
+
+    private record Waiter(Priority priority, double finishTag, long arrival, Condition turn) {}
+
+    private static final Comparator<Waiter> GRANT_ORDER = Comparator.comparing(Waiter::priority)
+            .thenComparingDouble(Waiter::finishTag)
+            .thenComparingLong(Waiter::arrival);
+
+    /**
+     * @param defaultMaxLimit ceiling for hosts that don't set maxConnections in their options
+     */
+    ConcurrencyController(Logger logger, int defaultMaxLimit) {
+        this.logger = logger;
+        this.defaultMaxLimit = defaultMaxLimit;
+    }
+
+    /**
+     * Blocks until the server's host has room for another transfer under its current limit and it is this
+     * transfer's turn.
+     *
+     * @param bytes how many bytes the transfer will move, what its source's share is charged
+     */
+    Ticket acquire(ServerConfig config, Share share, long bytes) throws IOException {
+        HostController host = hosts.computeIfAbsent(key(config.credentials()), key -> {
+            int maxConnections = config.options().maxConnections();
+            return new HostController(key, maxConnections > 0 ? maxConnections : defaultMaxLimit);
+        });
+        try {
+            host.acquire(share, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a transfer slot on " + config.credentials().hostname());
+        }
+        return new Ticket(host, System.nanoTime());
+    }
+
+    /**
+     * Ends a transfer and feeds its outcome into the host's limit.
+     *
+     * @param bytes how many bytes the transfer moved, used to tell a slow transfer from a large one
+     */
+    void release(Ticket ticket, long bytes, boolean success) {
+        ticket.host().release(ticket.startNanos(), System.nanoTime() - ticket.startNanos(), bytes, success);
+    }
+
+    Map<String, HostConcurrency> snapshot() {
+        Map<String, HostConcurrency> snapshot = new TreeMap<>();
+        hosts.forEach((key, host) -> snapshot.put(key, host.snapshot()));
+        return snapshot;
+    }
+
+    private static String key(Credentials credentials) {
+        return credentials.hostname() + ":" + credentials.port();
+    }
+
+    private final class HostController {
+        private final String host;
+        private final int maxLimit;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(GRANT_ORDER);
+        private final Map<String, Double> lastFinishTags = new HashMap<>();
+        private double virtualTime;
+        private long arrivals;
+        private double limit;
+        private int inFlight;
+        private long succeeded;
+        private long failed;
+        private double nanosPerByte;
+        private int samples;
+        // Compared by subtraction, as nanoTime values must be, so it starts at a real time and not a sentinel
+        private long lastDecreaseNanos;
+
+        private HostController(String host, int maxLimit) {
+            this.host = host;
+            this.maxLimit = maxLimit;
+            this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+            this.lastDecreaseNanos = System.nanoTime();
+        }
+
+        private void acquire(Share share, long bytes) throws InterruptedException {
+            lock.lock();
+            try {
+                double startTag = Math.max(virtualTime, lastFinishTags.getOrDefault(share.flow(), 0d));
+                double finishTag = startTag + (double) Math.max(1, bytes) / share.weight();
+                lastFinishTags.put(share.flow(), finishTag);
+                Waiter waiter = new Waiter(share.priority(), finishTag, arrivals++, lock.newCondition());
+                waiters.add(waiter);
+                try {
+                    while (waiters.peek() != waiter || inFlight >= (int) limit) {
+                        waiter.turn().await();
+                    }
+                } catch (InterruptedException e) {
+                    waiters.remove(waiter);
+                    signalNext();
+                    throw e;
+                }
+                waiters.poll();
+                inFlight++;
+                // Self-clocked: virtual time is the tag of the last transfer granted
+                virtualTime = Math.max(virtualTime, finishTag);
+                signalNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wakes the waiter whose turn it is, if there is room for it.
+         */
+        private void signalNext() {
+            Waiter next = waiters.peek();
+            if(next != null && inFlight < (int) limit){
+                next.turn().signal();
+            }
+        }
+
+        private void release(long startNanos, long elapsedNanos, long bytes, boolean success) {
+            lock.lock();
+            try {
+                inFlight--;
+                int before = (int) limit;
+                boolean spike = false;
+                if(success){
+                    succeeded++;
+                    spike = sample(elapsedNanos, bytes);
+                }else{
+                    failed++;
+                }
+
+                if(!success || spike){
+                    // Transfers started before the last cut were running under the old limit, don't count them twice
+                    if(startNanos - lastDecreaseNanos >= 0){
+                        limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+                        lastDecreaseNanos = System.nanoTime();
+                    }
+                }else{
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+
+                int after = (int) limit;
+                if(after < before){
+                    logger.info("Lowering concurrency for {} to {} after a {}", host, after, success ? "slow transfer" : "failed transfer");
+                }else if(after > before){
+                    logger.info("Raising concurrency for {} to {}", host, after);
+                }
+                signalNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds the transfer's speed to the average, returns whether it was a spike.
+         */
+        private boolean sample(long elapsedNanos, long bytes) {
+            if(bytes < MIN_SAMPLE_BYTES){
+                return false;
+            }
+            double sample = (double) elapsedNanos / bytes;
+            boolean spike = samples >= WARMUP_SAMPLES && sample > nanosPerByte * SPIKE_FACTOR;
+            nanosPerByte = samples == 0 ? sample : nanosPerByte + SMOOTHING * (sample - nanosPerByte);
+            samples++;
+            return spike;
+        }
+
+        private HostConcurrency snapshot() {
+            lock.lock();
+            try {
+                return new HostConcurrency(host, (int) limit, maxLimit, inFlight, succeeded, failed,
+                        nanosPerByte > 0 ? 1_000_000_000d / nanosPerByte : 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
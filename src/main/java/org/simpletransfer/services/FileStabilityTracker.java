@@ -0,0 +1,170 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds back files that are still being written. A file is released once its size and mtime have not changed for
+ * its quiet period and, if required, an exclusive lock on it can be taken.
+ * <p>
+ * All pending files share one DelayQueue and one thread. Each file has exactly one entry in the queue no matter how
+ * many events it gets, events only move its last-change time, and the entry re-queues itself until the file is quiet.
+ */
+class FileStabilityTracker implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The same file can be watched for more than one owner, e.g. two groups with the same source folder.
+     */
+    private record Key(Path path, Object owner) {}
+
+    private static final class Pending {
+        private final long quietNanos;
+        private final boolean requireExclusiveLock;
+        private final Consumer<Path> readyConsumer;
+        private volatile long lastChangeNanos;
+        private long size = -1;
+        private long modified = -1;
+
+        private Pending(Duration quietPeriod, boolean requireExclusiveLock, Consumer<Path> readyConsumer) {
+            this.quietNanos = quietPeriod.toNanos();
+            this.requireExclusiveLock = requireExclusiveLock;
+            this.readyConsumer = readyConsumer;
+        }
+    }
+
+    private record Check(Key key, long dueNanos) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Check) other).dueNanos);
+        }
+    }
+
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final DelayQueue<Check> checks = new DelayQueue<>();
+    private final Thread timer;
+
+    FileStabilityTracker(String name) {
+        this.timer = Thread.ofPlatform().name(name).daemon().start(this::run);
+    }
+
+    /**
+     * Called for every create or modify event on path. readyConsumer runs on the tracker's thread once the file is quiet.
+     */
+    void track(Path path, Object owner, Duration quietPeriod, boolean requireExclusiveLock, Consumer<Path> readyConsumer) {
+        long now = System.nanoTime();
+        Key key = new Key(path, owner);
+        boolean[] added = {false};
+        Pending tracked = pending.computeIfAbsent(key, _ -> {
+            added[0] = true;
+            Pending state = new Pending(quietPeriod, requireExclusiveLock, readyConsumer);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                state.size = attributes.size();
+                state.modified = attributes.lastModifiedTime().toMillis();
+            } catch (IOException ignored) {
+                // Compared against on the first check instead
+            }
+            return state;
+        });
+        tracked.lastChangeNanos = now;
+        if(added[0]){
+            checks.add(new Check(key, now + tracked.quietNanos));
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.interrupt();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Check check;
+            try {
+                check = checks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Key key = check.key();
+            Pending state = pending.get(key);
+            if(state == null){
+                continue;
+            }
+            try {
+                long quietUntil = check(key.path(), state);
+                if(quietUntil == 0){
+                    pending.remove(key);
+                    logger.info("[READY] {} is complete", key.path());
+                    state.readyConsumer.accept(key.path());
+                }else{
+                    checks.add(new Check(key, quietUntil));
+                }
+            } catch (NoSuchFileException e) {
+                pending.remove(key);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error while checking {}. Message: {}", key.path(), e.getMessage());
+                checks.add(new Check(key, System.nanoTime() + state.quietNanos));
+            }
+        }
+    }
+
+    /**
+     * Returns 0 when the file is ready, otherwise the time to check it again.
+     */
+    private long check(Path path, Pending state) throws IOException {
+        long now = System.nanoTime();
+        if(now - state.lastChangeNanos < state.quietNanos){
+            return state.lastChangeNanos + state.quietNanos;
+        }
+
+        // Events can be lost or coalesced, so the file itself has the final say
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        if(attributes.size() != state.size || modified != state.modified){
+            state.size = attributes.size();
+            state.modified = modified;
+            state.lastChangeNanos = now;
+            return now + state.quietNanos;
+        }
+
+        if(state.requireExclusiveLock && !canLock(path)){
+            return now + state.quietNanos;
+        }
+        return 0;
+    }
+
+    /**
+     * True when nobody else has the file open for writing. On Windows opening fails outright while the writer
+     * holds the file, elsewhere the lock is advisory and only catches writers that lock too.
+     */
+    private static boolean canLock(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.simpletransfer.services;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task repeatedly with a fixed delay between the end of one run and the start of the next,
+ * like scheduleWithFixedDelay, except the scheduler only keeps time. Each run is handed to executor,
+ * so a single timer thread can drive any number of sources while the runs themselves block on virtual threads.
+ */
+final class FixedDelayTask {
+    private final ScheduledExecutorService timer;
+    private final Executor executor;
+    private final Runnable task;
+    private final long delay;
+    private final TimeUnit timeUnit;
+
+    private volatile boolean cancelled;
+    private volatile ScheduledFuture<?> next;
+
+    FixedDelayTask(ScheduledExecutorService timer, Executor executor, Runnable task, long delay, TimeUnit timeUnit) {
+        this.timer = timer;
+        this.executor = executor;
+        this.task = task;
+        this.delay = delay;
+        this.timeUnit = timeUnit;
+    }
+
+    void start() {
+        arm(0);
+    }
+
+    void cancel() {
+        cancelled = true;
+        ScheduledFuture<?> scheduled = next;
+        if(scheduled != null){
+            scheduled.cancel(false);
+        }
+    }
+
+    private void arm(long initialDelay) {
+        if(cancelled){
+            return;
+        }
+        try {
+            next = timer.schedule(() -> executor.execute(this::runAndRearm), initialDelay, timeUnit);
+        } catch (RejectedExecutionException ignored) {
+            // Timer or executor is shutting down, nothing left to schedule
+        }
+    }
+
+    private void runAndRearm() {
+        try {
+            task.run();
+        } finally {
+            arm(delay);
+        }
+    }
+}
@@ -5,97 +5,254 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
+/**
+ * Watches any number of source folders on one shared WatchService with one dispatcher thread.
+ * Each folder is registered with its own callback, optionally together with every subfolder, including
+ * subfolders created later. Events are routed to the callbacks of every registration that covers the folder.
+ */
 public class FolderMonitor {
     private static final Logger logger = LogManager.getLogger();
+    // How long a file found by walking a new subfolder waits for its own create event to be dropped as a duplicate
+    private static final Duration WALK_DUPLICATE_WINDOW = Duration.ofMinutes(1);
 
-    private final WatchService watcher;
-    private final Path monitoredDir;
+    /**
+     * Handle for one registered folder.
+     */
+    public interface Watch {
+        /**
+         * Reports a file that was found some other way, e.g. by a reconciliation scan, as if it had just been created.
+         */
+        void report(Path file);
+    }
 
     /**
-     * Creates a WatchService and registers the given directory.
+     * One call to {@link #register}.
      */
-    public FolderMonitor(String sourceDir){
-        try{
-            this.watcher = FileSystems.getDefault().newWatchService();
-            this.monitoredDir = Paths.get(sourceDir);
+    private final class Registration implements Watch {
+        private final boolean recursive;
+        private final Duration quietPeriod;
+        private final boolean requireExclusiveLock;
+        private final Consumer<String> detectedFile;
+        private final Runnable overflow;
+        // Files reported by walking a new subfolder, whose create event may still be on its way
+        private final Map<Path, Walked> walked = new ConcurrentHashMap<>();
 
-            // Validate monitored directory
-            if (!Files.exists(monitoredDir) || !Files.isDirectory(monitoredDir)) {
-                logger.error("Monitored path is not a valid directory: {}", monitoredDir);
-                throw new IllegalArgumentException("Monitored path is not a valid directory: " + monitoredDir);
-            }
+        private Registration(boolean recursive, Duration quietPeriod, boolean requireExclusiveLock,
+                             Consumer<String> detectedFile, Runnable overflow) {
+            this.recursive = recursive;
+            this.quietPeriod = quietPeriod;
+            this.requireExclusiveLock = requireExclusiveLock;
+            this.detectedFile = detectedFile;
+            this.overflow = overflow;
+        }
 
-            // Register the monitored directory for ENTRY_CREATE events only
-            this.monitoredDir.register(watcher, ENTRY_CREATE);
+        @Override
+        public void report(Path file) {
+            onFile(file, ENTRY_CREATE, this);
+        }
+    }
+
+    private record WatchedDirectory(Path path, CopyOnWriteArrayList<Registration> registrations) {}
+
+    private record Walked(long size, long modified, long reportedNanos) {}
 
-            logger.info("Monitoring directory for new files: '{}'", monitoredDir.toAbsolutePath());
+    private final WatchService watcher;
+    private final Map<WatchKey, WatchedDirectory> watchedDirectories = new ConcurrentHashMap<>();
+    private final FileStabilityTracker stabilityTracker;
+    private final Thread dispatcher;
+
+    /**
+     * Creates the shared WatchService and starts the dispatcher thread.
+     */
+    public FolderMonitor(){
+        try{
+            this.watcher = FileSystems.getDefault().newWatchService();
         } catch (IOException e) {
             logger.error("Error initializing folder monitor. {}", e.getMessage());
             throw new RuntimeException(e);
         }
+        this.stabilityTracker = new FileStabilityTracker("folder-monitor-stability");
+        this.dispatcher = Thread.ofPlatform().name("folder-monitor").start(this::dispatch);
     }
 
     /**
-     * Starts the continuous monitoring of the directory.
+     * Starts watching sourceDir, and with recursive all its subfolders, calling detectedFile with the absolute path of
+     * every new file. detectedFile runs on a thread shared by all registrations and must not block.
+     * With a positive quietPeriod a file is only reported once its size and mtime have been unchanged
+     * that long and, with requireExclusiveLock, once it can be locked. overflow runs on the dispatcher thread when
+     * events under the folder were lost, it should hand any rescan off to another thread.
      */
-    public void startMonitoring(Consumer<String> detectedFile) {
+    public Watch register(String sourceDir, boolean recursive, Duration quietPeriod, boolean requireExclusiveLock,
+                          Consumer<String> detectedFile, Runnable overflow){
+        Path monitoredDir = Paths.get(sourceDir);
+
+        // Validate monitored directory
+        if (!Files.exists(monitoredDir) || !Files.isDirectory(monitoredDir)) {
+            logger.error("Monitored path is not a valid directory: {}", monitoredDir);
+            throw new IllegalArgumentException("Monitored path is not a valid directory: " + monitoredDir);
+        }
+
+        Registration registration = new Registration(recursive, quietPeriod, requireExclusiveLock, detectedFile, overflow);
+        try {
+            if(recursive){
+                registerTree(monitoredDir, registration);
+            }else{
+                registerDirectory(monitoredDir, registration);
+            }
+        } catch (IOException e) {
+            logger.error("Error registering {} with the folder monitor. {}", monitoredDir, e.getMessage());
+            throw new RuntimeException(e);
+        }
+        logger.info("Monitoring directory{} for new files: '{}'", recursive ? " tree" : "", monitoredDir.toAbsolutePath());
+        return registration;
+    }
+
+    private void registerTree(Path root, Registration registration) throws IOException {
+        try (Stream<Path> directories = Files.walk(root)) {
+            for (Path directory : directories.filter(Files::isDirectory).toList()) {
+                registerDirectory(directory, registration);
+            }
+        }
+    }
+
+    private void registerDirectory(Path directory, Registration registration) throws IOException {
+        // Modify events only matter for registrations waiting for files to settle, the others ignore them
+        WatchKey key = directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        watchedDirectories.computeIfAbsent(key, _ -> new WatchedDirectory(directory, new CopyOnWriteArrayList<>()))
+                .registrations()
+                .addIfAbsent(registration);
+    }
+
+    private void dispatch() {
         while (true) {
             WatchKey key;
             try {
                 // Retrieve the next queued watch key, waiting indefinitely
                 key = watcher.take();
-            } catch (InterruptedException x) {
-                logger.error("Folder monitoring interrupted. Exiting.");
-                Thread.currentThread().interrupt(); // Restore the interrupted status
+            } catch (InterruptedException | ClosedWatchServiceException x) {
+                logger.info("Folder monitoring stopped.");
                 return;
             }
 
-            // Iterate over all events for the retrieved key
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
+            WatchedDirectory watchedDirectory = watchedDirectories.get(key);
+            if(watchedDirectory != null){
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        handle(watchedDirectory, event);
+                    } catch (RuntimeException e) {
+                        logger.error("Error while handling an event in {}. Message: {}", watchedDirectory.path(), e.getMessage());
+                    }
+                }
+            }
 
-                // Handle overflow event (some events might have been lost)
-                if (kind == OVERFLOW) {
-                    logger.error("Event overflow occurred. Some events might have been lost.");
-                    continue;
+            // Reset the key. If the key is no longer valid the directory is gone, stop routing its events.
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+                if(watchedDirectory != null){
+                    logger.info("Watch key no longer valid for {}. It might have been deleted or become inaccessible.", watchedDirectory.path());
                 }
+            }
+        }
+    }
 
-                // We are only interested in ENTRY_CREATE events
-                if (kind == ENTRY_CREATE) {
-                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path filename = ev.context(); // The name of the created file/directory
+    @SuppressWarnings("unchecked")
+    private void handle(WatchedDirectory watchedDirectory, WatchEvent<?> event) {
+        WatchEvent.Kind<?> kind = event.kind();
 
-                    // Resolve the full path of the newly created file/directory
-                    Path createdFilePath = monitoredDir.resolve(filename);
+        // Handle overflow event (some events might have been lost), the owners rescan to find what was missed
+        if (kind == OVERFLOW) {
+            logger.warn("Event overflow occurred in {}. Some events might have been lost.", watchedDirectory.path());
+            watchedDirectory.registrations().forEach(registration -> registration.overflow.run());
+            return;
+        }
 
-                    // Check if it's a regular file (not a directory)
-                    // This is important because WatchService also fires events for directory creation
-                    if (Files.isRegularFile(createdFilePath)) {
-                        logger.info("[CREATED] Detected new file: {}", createdFilePath.toAbsolutePath());
-                        detectedFile.accept(createdFilePath.toAbsolutePath().toString());
-                    }
+        // Resolve the full path of the newly created or modified file/directory
+        Path path = watchedDirectory.path().resolve(((WatchEvent<Path>) event).context());
+        for (Registration registration : watchedDirectory.registrations()) {
+            if (Files.isDirectory(path)) {
+                if(kind == ENTRY_CREATE && registration.recursive){
+                    watchNewDirectory(path, registration);
                 }
+            } else if (Files.isRegularFile(path) && !(kind == ENTRY_CREATE && isWalkedAlready(path, registration))) {
+                onFile(path, kind, registration);
+            }
+        }
+    }
+
+    /**
+     * Watches a directory created under a recursive registration. Files may already have landed in it before it
+     * was registered, those are reported as new. Files created after it was registered are found by the walk and
+     * also get a create event, which {@link #isWalkedAlready} drops.
+     */
+    private void watchNewDirectory(Path directory, Registration registration) {
+        long now = System.nanoTime();
+        registration.walked.values().removeIf(walked -> now - walked.reportedNanos() > WALK_DUPLICATE_WINDOW.toNanos());
+        try {
+            registerTree(directory, registration);
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.filter(Files::isRegularFile).forEach(file -> {
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        registration.walked.put(file, new Walked(attributes.size(), attributes.lastModifiedTime().toMillis(), now));
+                    } catch (IOException ignored) {
+                        // Gone again, its events tell the rest
+                    }
+                    onFile(file, ENTRY_CREATE, registration);
+                });
             }
+        } catch (IOException e) {
+            logger.error("Error watching new directory {}. Message: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Whether a create event is for a file the walk of its new folder already reported, unchanged since.
+     */
+    private static boolean isWalkedAlready(Path file, Registration registration) {
+        Walked walked = registration.walked.remove(file);
+        if(walked == null || System.nanoTime() - walked.reportedNanos() > WALK_DUPLICATE_WINDOW.toNanos()){
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == walked.size() && attributes.lastModifiedTime().toMillis() == walked.modified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            // Reset the key. If the key is no longer valid, the loop will exit.
-            boolean valid = key.reset();
-            if (!valid) {
-                logger.info("Watch key no longer valid. Monitored directory might have been deleted or unaccessible. Exiting monitoring.");
-                break;
+    private void onFile(Path path, WatchEvent.Kind<?> kind, Registration registration) {
+        if(registration.quietPeriod.isPositive()){
+            if(kind == ENTRY_CREATE){
+                logger.info("[CREATED] Detected new file, waiting for it to settle: {}", path.toAbsolutePath());
             }
+            stabilityTracker.track(path, registration, registration.quietPeriod, registration.requireExclusiveLock,
+                    ready -> registration.detectedFile.accept(ready.toAbsolutePath().toString()));
+        }else if(kind == ENTRY_CREATE){
+            logger.info("[CREATED] Detected new file: {}", path.toAbsolutePath());
+            registration.detectedFile.accept(path.toAbsolutePath().toString());
         }
     }
 
     public void closeAll(){
+        stabilityTracker.close();
         try {
             this.watcher.close();
         } catch (IOException e) {
             logger.error("Error while trying to close watcher: {}", e.getMessage());
         }
+        dispatcher.interrupt();
     }
-}
\ No newline at end of file
+}
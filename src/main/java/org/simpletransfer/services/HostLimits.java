@@ -0,0 +1,114 @@
+package org.simpletransfer.services;
+
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.utils.TokenBucket;
+
+import javax.net.SocketFactory;
+import java.io.Serial;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bandwidth and connection limits per host (hostname and port), shared by every {@link RemoteClientFactory} so a
+ * host that is both a source and a destination is held to one budget.
+ * <p>
+ * When several server configs for the same host set a limit, the lowest one wins, for bandwidth and connections alike.
+ * <p>
+ * The connection limit only covers connections borrowed from a {@link RemoteClientPool}, which is how destinations
+ * are reached. Idle pooled connections don't count, and neither do the connections a source transfer opens for
+ * itself, its SFTP download lanes and its download segments: those are sized by the source's parallelism and
+ * segments options.
+ */
+public class HostLimits {
+    private final TokenBucket globalBucket;
+    private final Map<String, TokenBucket> hostBuckets = new ConcurrentHashMap<>();
+    private final Map<String, ConnectionPermits> connectionPermits = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytesPerSecond bandwidth for all hosts together, up and down combined. Null or below 1 means unlimited
+     */
+    public HostLimits(Long maxBytesPerSecond) {
+        this.globalBucket = maxBytesPerSecond != null && maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond) : null;
+    }
+
+    /**
+     * Socket factory for the clients of this server, the plain default one when no bandwidth limit applies.
+     */
+    public SocketFactory socketFactory(ServerConfig config) {
+        List<TokenBucket> buckets = buckets(config);
+        return buckets.isEmpty() ? SocketFactory.getDefault() : new ThrottledSocketFactory(buckets);
+    }
+
+    /**
+     * Throttles sockets the clients of this server get from somewhere other than {@link #socketFactory}, such as the
+     * TLS data connections of FTPS. Leaves them as they are when no bandwidth limit applies.
+     */
+    public UnaryOperator<Socket> socketWrapper(ServerConfig config) {
+        List<TokenBucket> buckets = buckets(config);
+        return buckets.isEmpty() ? UnaryOperator.identity() : new ThrottledSocketFactory(buckets)::wrap;
+    }
+
+    private List<TokenBucket> buckets(ServerConfig config) {
+        List<TokenBucket> buckets = new ArrayList<>(2);
+        long maxBytesPerSecond = config.options().maxBytesPerSecond();
+        if(maxBytesPerSecond > 0){
+            TokenBucket hostBucket = hostBuckets.computeIfAbsent(key(config.credentials()), _ -> new TokenBucket(maxBytesPerSecond));
+            hostBucket.limitTo(maxBytesPerSecond);
+            buckets.add(hostBucket);
+        }
+        if(globalBucket != null){
+            buckets.add(globalBucket);
+        }
+        return buckets;
+    }
+
+    /**
+     * Permits for the pooled connections in use to the server's host, sized by the lowest maxConnections set by any
+     * config for that host seen so far, or defaultLimit while none sets it.
+     */
+    Semaphore connectionPermits(ServerConfig config, int defaultLimit) {
+        ConnectionPermits permits = connectionPermits.computeIfAbsent(key(config.credentials()),
+                _ -> new ConnectionPermits(defaultLimit));
+        permits.limitTo(config.options().maxConnections());
+        return permits;
+    }
+
+    /**
+     * A fair semaphore whose size can be lowered to a configured limit, or raised once from the default to the first
+     * configured limit. Permits taken beyond a lowered size are simply not handed out again when they come back.
+     */
+    private static final class ConnectionPermits extends Semaphore {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private int limit;
+        private boolean configured;
+
+        private ConnectionPermits(int defaultLimit) {
+            super(defaultLimit, true);
+            this.limit = defaultLimit;
+        }
+
+        private synchronized void limitTo(int maxConnections) {
+            if(maxConnections <= 0 || (configured && maxConnections >= limit)){
+                return;
+            }
+            if(maxConnections > limit){
+                release(maxConnections - limit);
+            }else{
+                reducePermits(limit - maxConnections);
+            }
+            limit = maxConnections;
+            configured = true;
+        }
+    }
+
+    private static String key(Credentials credentials) {
+        return credentials.hostname() + ":" + credentials.port();
+    }
+}
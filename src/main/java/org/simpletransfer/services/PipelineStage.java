@@ -0,0 +1,133 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.StageStats;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * One stage of a transfer pipeline: a bounded queue and the workers that drain it. Putting into a full queue blocks,
+ * so a slow stage holds back the ones before it instead of letting work pile up in between.
+ * A worker takes whatever is queued, up to maxBatch items, and hands it to the handler in one go.
+ * With an order the queue hands out the lowest items first instead of the oldest. With a linger a worker that finds
+ * fewer than maxBatch items waits up to that long for more before handing the batch over.
+ */
+final class PipelineStage<T> {
+    private final Logger logger;
+    private final String name;
+    private final BlockingQueue<T> queue;
+    // Room left in the queue, the priority queue itself is unbounded
+    private final Semaphore room;
+    private final int capacity;
+    private final int workers;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final Consumer<List<T>> handler;
+    private final StageMeter meter;
+    private volatile boolean running = true;
+
+    PipelineStage(Logger logger, String name, int capacity, int workers, int maxBatch, Consumer<List<T>> handler) {
+        this(logger, name, capacity, workers, maxBatch, Duration.ZERO, null, handler);
+    }
+
+    /**
+     * @param linger how long to wait for a batch to fill up after its first item, zero to hand over what is there
+     * @param order  which queued items are handed out first, null for first in, first out
+     */
+    PipelineStage(Logger logger, String name, int capacity, int workers, int maxBatch, Duration linger,
+                  Comparator<? super T> order, Consumer<List<T>> handler) {
+        this.logger = logger;
+        this.name = name;
+        this.queue = order == null ? new LinkedBlockingQueue<>() : new PriorityBlockingQueue<>(capacity, order);
+        this.room = new Semaphore(capacity);
+        this.capacity = capacity;
+        this.workers = workers;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = linger.toNanos();
+        this.handler = handler;
+        this.meter = new StageMeter(name, workers);
+    }
+
+    void start(Executor executor) {
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+    }
+
+    void put(T item) throws InterruptedException {
+        room.acquire();
+        queue.add(item);
+    }
+
+    StageStats stats() {
+        return meter.snapshot(queue.size(), capacity);
+    }
+
+    /**
+     * Workers finish the batch they are on and exit. Whatever is still queued is dropped.
+     */
+    void stop() {
+        running = false;
+    }
+
+    private void work() {
+        List<T> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                T first = queue.poll(1, TimeUnit.SECONDS);
+                if(first == null){
+                    continue;
+                }
+                batch.add(first);
+                room.release();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            fill(batch);
+
+            long start = System.nanoTime();
+            try {
+                handler.accept(batch);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in the {} stage. Message: {}", name, e.getMessage());
+            } finally {
+                meter.record(batch.size(), System.nanoTime() - start);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Tops the batch up from the queue, lingering for more when there is a linger. An interrupt ends the lingering,
+     * the batch is still handled.
+     */
+    private void fill(List<T> batch) {
+        room.release(queue.drainTo(batch, maxBatch - batch.size()));
+        long deadline = System.nanoTime() + lingerNanos;
+        long remaining;
+        while (batch.size() < maxBatch && running && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                T next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if(next == null){
+                    return;
+                }
+                batch.add(next);
+                room.release(1 + queue.drainTo(batch, maxBatch - batch.size()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+
+/**
+ * Walks a source tree in parallel and hands every regular file with its attributes to a visitor.
+ * <p>
+ * Directories are read with a DirectoryStream, which pulls entries from the OS as it goes, and files are passed on
+ * in chunks of {@link #CHUNK_SIZE}. Subdirectories and chunks are forked onto the pool, but each directory keeps at
+ * most {@link #MAX_PENDING} of them outstanding, so a directory with hundreds of thousands of entries is never held
+ * in memory as a whole.
+ */
+class ReconciliationScanner implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int CHUNK_SIZE = 512;
+    private static final int MAX_PENDING = 16;
+
+    private record ScannedFile(Path path, BasicFileAttributes attributes) {}
+
+    private final ForkJoinPool pool;
+
+    ReconciliationScanner(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Visits every regular file under root, and with recursive under its subfolders too. The visitor is called from
+     * several threads at once. Returns the number of files visited.
+     */
+    long scan(Path root, boolean recursive, BiConsumer<Path, BasicFileAttributes> visitor) {
+        return pool.invoke(new DirectoryTask(root, recursive, visitor));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static final class DirectoryTask extends RecursiveTask<Long> {
+        private final Path directory;
+        private final boolean recursive;
+        private final BiConsumer<Path, BasicFileAttributes> visitor;
+
+        private DirectoryTask(Path directory, boolean recursive, BiConsumer<Path, BasicFileAttributes> visitor) {
+            this.directory = directory;
+            this.recursive = recursive;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected Long compute() {
+            long visited = 0;
+            Deque<ForkJoinTask<Long>> pending = new ArrayDeque<>();
+            List<ScannedFile> chunk = new ArrayList<>(CHUNK_SIZE);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // Deleted or moved since it was listed
+                        continue;
+                    }
+                    ForkJoinTask<Long> task = null;
+                    if(attributes.isDirectory()){
+                        if(recursive){
+                            task = new DirectoryTask(entry, true, visitor);
+                        }
+                    }else if(attributes.isRegularFile()){
+                        chunk.add(new ScannedFile(entry, attributes));
+                        if(chunk.size() == CHUNK_SIZE){
+                            task = new ChunkTask(chunk, visitor);
+                            chunk = new ArrayList<>(CHUNK_SIZE);
+                        }
+                    }
+                    if(task != null){
+                        if(pending.size() == MAX_PENDING){
+                            visited += pending.removeFirst().join();
+                        }
+                        pending.addLast(task.fork());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error scanning {}. Message: {}", directory, e.getMessage());
+            }
+            visited += new ChunkTask(chunk, visitor).compute();
+            while (!pending.isEmpty()) {
+                visited += pending.removeFirst().join();
+            }
+            return visited;
+        }
+    }
+
+    private static final class ChunkTask extends RecursiveTask<Long> {
+        private final List<ScannedFile> files;
+        private final BiConsumer<Path, BasicFileAttributes> visitor;
+
+        private ChunkTask(List<ScannedFile> files, BiConsumer<Path, BasicFileAttributes> visitor) {
+            this.files = files;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected Long compute() {
+            for (ScannedFile file : files) {
+                try {
+                    visitor.accept(file.path(), file.attributes());
+                } catch (RuntimeException e) {
+                    logger.error("Error reconciling {}. Message: {}", file.path(), e.getMessage());
+                }
+            }
+            return (long) files.size();
+        }
+    }
+}
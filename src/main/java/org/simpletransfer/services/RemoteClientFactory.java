@@ -1,25 +1,46 @@
 package org.simpletransfer.services;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.TransportException;
+import org.apache.commons.net.SocketClient;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPSClient;
 import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Compression;
 import org.simpletransfer.models.RemoteClient;
 import org.simpletransfer.models.ServerConfig;
 import org.simpletransfer.services.clients.*;
+import org.simpletransfer.utils.CheckpointStore;
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.TransferJournal;
 
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
-public class RemoteClientFactory {
+public class RemoteClientFactory implements AutoCloseable {
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    private static final Duration DEFAULT_MAX_IDLE = Duration.ofMinutes(5);
+
     private final Logger logger;
     private final BiConsumer<List<String>, String> uploadedFilesConsumer;
 
     private final Supplier<SSHClient> sshClientSupplier;
     private final Supplier<FTPClient> ftpClientSupplier;
     private final Supplier<FTPSClient> ftpsClientSupplier;
+    private final RemoteClientPool pool;
+    private final CheckpointStore checkpointStore = new CheckpointStore(Path.of(CheckpointStore.DEFAULT_DIRECTORY));
+    private final ListingCache listingCache = new ListingCache();
+    private final DownloadDigests downloadDigests = new DownloadDigests();
+    private final TransferJournal journal;
+    private final HostLimits hostLimits;
 
     public RemoteClientFactory(
             Logger logger,
@@ -27,21 +48,125 @@ public class RemoteClientFactory {
             Supplier<SSHClient> sshClientSupplier,
             Supplier<FTPClient> ftpClientSupplier,
             Supplier<FTPSClient> ftpsClientSupplier
+    ) {
+        this(logger, consumer, sshClientSupplier, ftpClientSupplier, ftpsClientSupplier, null);
+    }
+
+    /**
+     * @param journal journals downloads before the source files are deleted, may be null. The caller closes it.
+     */
+    public RemoteClientFactory(
+            Logger logger,
+            BiConsumer<List<String>, String> consumer,
+            Supplier<SSHClient> sshClientSupplier,
+            Supplier<FTPClient> ftpClientSupplier,
+            Supplier<FTPSClient> ftpsClientSupplier,
+            TransferJournal journal
+    ) {
+        this(logger, consumer, sshClientSupplier, ftpClientSupplier, ftpsClientSupplier, journal, new HostLimits(null));
+    }
+
+    /**
+     * @param journal    journals downloads before the source files are deleted, may be null. The caller closes it.
+     * @param hostLimits bandwidth and connection limits, share one instance between factories that may reach the same hosts
+     */
+    public RemoteClientFactory(
+            Logger logger,
+            BiConsumer<List<String>, String> consumer,
+            Supplier<SSHClient> sshClientSupplier,
+            Supplier<FTPClient> ftpClientSupplier,
+            Supplier<FTPSClient> ftpsClientSupplier,
+            TransferJournal journal,
+            HostLimits hostLimits
+    ) {
+        this(logger, consumer, sshClientSupplier, ftpClientSupplier, ftpsClientSupplier, journal, hostLimits,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_IDLE);
+    }
+
+    public RemoteClientFactory(
+            Logger logger,
+            BiConsumer<List<String>, String> consumer,
+            Supplier<SSHClient> sshClientSupplier,
+            Supplier<FTPClient> ftpClientSupplier,
+            Supplier<FTPSClient> ftpsClientSupplier,
+            TransferJournal journal,
+            HostLimits hostLimits,
+            int maxConnectionsPerHost,
+            Duration maxIdle
     ) {
         this.logger = logger;
-        this.uploadedFilesConsumer = consumer;
+        this.uploadedFilesConsumer = consumer != null ? consumer : (_, _) -> {};
         this.sshClientSupplier = sshClientSupplier != null ? sshClientSupplier : SSHClient::new;
-        this.ftpClientSupplier = ftpClientSupplier != null ? ftpClientSupplier : FTPClient::new;
-        this.ftpsClientSupplier = ftpsClientSupplier != null ? ftpsClientSupplier : () -> new FTPSClient(false);
+        this.ftpClientSupplier = ftpClientSupplier != null ? ftpClientSupplier : WrappingFTPClient::new;
+        this.ftpsClientSupplier = ftpsClientSupplier != null ? ftpsClientSupplier : () -> new WrappingFTPSClient(false);
+        this.journal = journal;
+        this.hostLimits = hostLimits;
+        this.pool = new RemoteClientPool(logger, this::create, hostLimits, maxConnectionsPerHost, maxIdle);
+    }
+
+    /**
+     * Borrows a connected client from the pool. Give it back with {@link #release} or {@link #invalidate}.
+     */
+    public RemoteClient borrow(ServerConfig config) throws IOException {
+        return pool.borrow(config);
+    }
+
+    public void release(ServerConfig config, RemoteClient client) {
+        pool.release(config, client);
+    }
+
+    public void invalidate(ServerConfig config, RemoteClient client) {
+        pool.invalidate(config, client);
     }
 
+    /**
+     * Hashes of the files this factory's clients downloaded in one stream, keyed by their local path.
+     */
+    public DownloadDigests downloadDigests() {
+        return downloadDigests;
+    }
+
+    /**
+     * Disconnects every pooled client.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * Creates a new, unpooled and unconnected client.
+     */
     public RemoteClient create(ServerConfig config) {
+        // Every socket of the client, and of the extra connections it opens, goes through the host's bandwidth limit
+        SocketFactory socketFactory = hostLimits.socketFactory(config);
+        Supplier<SSHClient> configuredSSHClientSupplier = () -> {
+            SSHClient sshClient = sshClientSupplier.get();
+            sshClient.setSocketFactory(socketFactory);
+            if(config.options().compression() == Compression.NEGOTIATE){
+                // Offers zlib@openssh.com and zlib ahead of none, the server picks
+                try {
+                    sshClient.useCompression();
+                } catch (TransportException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return sshClient;
+        };
+
         return switch (config.credentials().type()) {
             case SFTP -> new SftpRemoteClient.Builder()
                     .withCredentials(config.credentials())
                     .withFileInfos(new ArrayList<>())
                     .withLogger(logger)
-                    .withSSHClient(sshClientSupplier.get())
+                    .withSSHClient(configuredSSHClientSupplier.get())
+                    .withSSHClientSupplier(configuredSSHClientSupplier)
+                    .withTransferOptions(config.options())
+                    .withCheckpointStore(checkpointStore)
+                    .withConnectionSupplier(() -> create(config))
+                    .withListingCache(listingCache)
+                    .withDownloadDigests(downloadDigests)
+                    .withJournal(journal)
                     .withConsumer(uploadedFilesConsumer)
                     .build();
 
@@ -49,7 +174,13 @@ public class RemoteClientFactory {
                     .withCredentials(config.credentials())
                     .withFileInfos(new ArrayList<>())
                     .withLogger(logger)
-                    .withFTPClient(ftpClientSupplier.get())
+                    .withFTPClient(withSocketFactory(ftpClientSupplier.get(), socketFactory))
+                    .withTransferOptions(config.options())
+                    .withCheckpointStore(checkpointStore)
+                    .withConnectionSupplier(() -> create(config))
+                    .withListingCache(listingCache)
+                    .withDownloadDigests(downloadDigests)
+                    .withJournal(journal)
                     .withConsumer(uploadedFilesConsumer)
                     .build();
 
@@ -57,11 +188,33 @@ public class RemoteClientFactory {
                     .withCredentials(config.credentials())
                     .withFileInfos(new ArrayList<>())
                     .withLogger(logger)
-                    .withFTPSClient(ftpsClientSupplier.get())
+                    .withFTPSClient(ftpsClient(config, socketFactory))
+                    .withTransferOptions(config.options())
+                    .withCheckpointStore(checkpointStore)
+                    .withConnectionSupplier(() -> create(config))
+                    .withListingCache(listingCache)
+                    .withDownloadDigests(downloadDigests)
                     .withConsumer(uploadedFilesConsumer)
                     .build();
 
             default -> throw new IllegalArgumentException("Unsupported protocol type: " + config.credentials().type());
         };
     }
+
+    /**
+     * The socket factory only covers the control connection of FTPS, its TLS data connections are throttled by wrapping
+     * them. Only possible with the default client supplier.
+     */
+    private FTPSClient ftpsClient(ServerConfig config, SocketFactory socketFactory) {
+        FTPSClient ftpsClient = withSocketFactory(ftpsClientSupplier.get(), socketFactory);
+        if(ftpsClient instanceof WrappingFTPSClient wrappingClient){
+            wrappingClient.setDataSocketWrapper(hostLimits.socketWrapper(config));
+        }
+        return ftpsClient;
+    }
+
+    private static <T extends SocketClient> T withSocketFactory(T client, SocketFactory socketFactory) {
+        client.setSocketFactory(socketFactory);
+        return client;
+    }
 }
@@ -0,0 +1,196 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.models.TransferOptions;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps connected RemoteClients around between transfers so they don't pay TCP, TLS/SSH and login every time.
+ * Clients are keyed by their full {@link Credentials} together with the server's {@link TransferOptions}, since the
+ * client factory bakes options such as compression, bandwidth throttling and transfer mode into a connection when it
+ * creates it. Two accounts on the same host, or two configs for one account with different options, get their own
+ * connections, while the number of connections in use to one host (hostname and port) is capped across all accounts,
+ * and across every pool sharing the same {@link HostLimits}. Idle connections don't count towards the cap, nor do
+ * clients made by {@link RemoteClientFactory#create} outside the pool.
+ */
+public class RemoteClientPool implements AutoCloseable {
+    private static final Duration VALIDATE_AFTER_IDLE = Duration.ofSeconds(10);
+    private static final Duration BORROW_TIMEOUT = Duration.ofMinutes(5);
+
+    private final Logger logger;
+    private final Function<ServerConfig, RemoteClient> clientCreator;
+    private final int maxPerHost;
+    private final Duration maxIdle;
+    private final HostLimits hostLimits;
+
+    private final Map<PoolKey, Deque<IdleClient>> idleClients = new ConcurrentHashMap<>();
+    private final Set<RemoteClient> borrowedClients = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService evictor;
+
+    private record IdleClient(RemoteClient client, long idleSince) {}
+
+    private record PoolKey(Credentials credentials, TransferOptions options) {
+        private static PoolKey of(ServerConfig config) {
+            return new PoolKey(config.credentials(), config.options());
+        }
+    }
+
+    public RemoteClientPool(Logger logger, Function<ServerConfig, RemoteClient> clientCreator, int maxPerHost, Duration maxIdle) {
+        this(logger, clientCreator, new HostLimits(null), maxPerHost, maxIdle);
+    }
+
+    /**
+     * @param maxPerHost connections per host for servers that don't set maxConnections in their options
+     */
+    public RemoteClientPool(Logger logger, Function<ServerConfig, RemoteClient> clientCreator, HostLimits hostLimits,
+                            int maxPerHost, Duration maxIdle) {
+        this.logger = logger;
+        this.clientCreator = clientCreator;
+        this.hostLimits = hostLimits;
+        this.maxPerHost = maxPerHost;
+        this.maxIdle = maxIdle;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "remote-client-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, maxIdle.toSeconds() / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hands out a connected client for the given server, reusing an idle one when it still answers.
+     * Blocks while the host already has as many connections in use as it is allowed.
+     * Every borrowed client must be given back through {@link #release} or {@link #invalidate}.
+     */
+    public RemoteClient borrow(ServerConfig config) throws IOException {
+        Semaphore permits = hostPermits(config);
+        try {
+            if(!permits.tryAcquire(BORROW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)){
+                throw new IOException("Timed out waiting for a free connection to " + config.credentials().hostname());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + config.credentials().hostname());
+        }
+
+        try {
+            RemoteClient client = takeIdle(PoolKey.of(config));
+            if(client == null){
+                client = clientCreator.apply(config);
+            }
+            // Lazy reconnect, covers new clients and ones that were dropped by the server
+            if(!client.isConnected()){
+                client.connect();
+            }
+            if(!client.isConnected()){
+                throw new IOException("Not connected to " + config.credentials().hostname());
+            }
+            borrowedClients.add(client);
+            return client;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a healthy client back to the pool for reuse.
+     */
+    public void release(ServerConfig config, RemoteClient client) {
+        if(!borrowedClients.remove(client)){
+            return;
+        }
+        if(client.isConnected()){
+            idleClients.computeIfAbsent(PoolKey.of(config), _ -> new ConcurrentLinkedDeque<>())
+                    .push(new IdleClient(client, System.nanoTime()));
+        }
+        hostPermits(config).release();
+    }
+
+    /**
+     * Gives back a client that failed, it is disconnected instead of being reused.
+     */
+    public void invalidate(ServerConfig config, RemoteClient client) {
+        if(!borrowedClients.remove(client)){
+            return;
+        }
+        disconnectQuietly(client);
+        hostPermits(config).release();
+    }
+
+    private RemoteClient takeIdle(PoolKey key) {
+        Deque<IdleClient> deque = idleClients.get(key);
+        if(deque == null){
+            return null;
+        }
+        IdleClient idleClient;
+        while ((idleClient = deque.poll()) != null) {
+            RemoteClient client = idleClient.client();
+            boolean needsValidation = System.nanoTime() - idleClient.idleSince() > VALIDATE_AFTER_IDLE.toNanos();
+            if(client.isConnected() && (!needsValidation || client.isAlive())){
+                return client;
+            }
+            logger.info("Discarding stale connection to {}", key.credentials().hostname());
+            disconnectQuietly(client);
+        }
+        return null;
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (Deque<IdleClient> deque : idleClients.values()) {
+            Iterator<IdleClient> iterator = deque.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleClient idleClient = iterator.next();
+                if(now - idleClient.idleSince() > maxIdle.toNanos() && deque.removeLastOccurrence(idleClient)){
+                    logger.info("Closing idle connection to {}", idleClient.client().getHostName());
+                    disconnectQuietly(idleClient.client());
+                }
+            }
+        }
+    }
+
+    private Semaphore hostPermits(ServerConfig config) {
+        return hostLimits.connectionPermits(config, maxPerHost);
+    }
+
+    private void disconnectQuietly(RemoteClient client) {
+        try {
+            if(client.isConnected()){
+                client.disconnect();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error while disconnecting from {}. Message: {}", client.getHostName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        idleClients.values().forEach(deque -> {
+            IdleClient idleClient;
+            while ((idleClient = deque.poll()) != null) {
+                disconnectQuietly(idleClient.client());
+            }
+        });
+        borrowedClients.forEach(this::disconnectQuietly);
+        borrowedClients.clear();
+    }
+}
@@ -2,34 +2,81 @@ package org.simpletransfer.services;
 
 import org.apache.logging.log4j.Logger;
 import org.simpletransfer.models.*;
-import org.simpletransfer.utils.Util;
+import org.simpletransfer.utils.DedupIndex;
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.FileBundle;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.StagedFile;
+import org.simpletransfer.utils.TransferJournal;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 /**
  * Transfers data for sources whose credential type is FTP, SFTP, or FTPS.
+ * <p>
+ * With a {@link TransferJournal} every staged file's uploads and archiving are journaled. After a restart, files
+ * still in staging only go to the destinations that don't have them yet, and source files whose download was
+ * journaled but never deleted are deleted before the next download.
  */
 @SuppressWarnings("LoggingSimilarMessage")
 public class SourceFTPTransfer implements Transfer {
+    private static final int UPLOAD_QUEUE_CAPACITY = 100;
+    private static final int ARCHIVE_QUEUE_CAPACITY = 1000;
+    private static final int UPLOAD_WORKERS = 2;
+    private static final int MAX_UPLOAD_BATCH = 50;
+    // Batches are what bundles are made from, so sources with bundling destinations take larger ones
+    private static final int MAX_BUNDLING_BATCH = 1000;
+    private static final int MIN_BUNDLE_FILES = 2;
+    private static final int MAX_ARCHIVE_BATCH = 1000;
+
     private final Logger logger;
     private final String baseInboundFolder;
     private final int interval;
     private final TimeUnit timeUnit;
-    private BiConsumer<List<String>, String> uploadedFilesConsumer;
+    private final BiConsumer<List<String>, String> uploadedFilesConsumer;
     private final RemoteClientFactory remoteClientFactory;
     private final ScheduledExecutorService scheduler;
+    private final ExecutorService uploadExecutor;
+    private final ExecutorService taskExecutor;
+    private final ExecutorService stageExecutor;
+    private final StreamRelay streamRelay;
+    private final DedupIndex dedupIndex;
+    private final TransferJournal journal;
+    private final UploadVerifier uploadVerifier;
+    private final ConcurrencyController concurrencyController;
 
     private final List<RemoteClient> sourceRemoteClients = new ArrayList<>();
-    private final Map<String, RemoteClient> destinationRemoteClients = new WeakHashMap<>();
-    private final List<TransferTask> transferTasks = new ArrayList<>();
+    private final List<FixedDelayTask> scheduledTasks = new ArrayList<>();
+    private final List<SourcePipeline> pipelines = new ArrayList<>();
 
     private SourceFTPTransfer(Builder builder) {
         this.logger = builder.logger;
@@ -38,6 +85,15 @@ public class SourceFTPTransfer implements Transfer {
         this.timeUnit = builder.timeUnit == null ? TimeUnit.MINUTES : builder.timeUnit;
         this.remoteClientFactory = builder.remoteClientFactory;
         this.scheduler = builder.scheduler != null ? builder.scheduler : Executors.newScheduledThreadPool(4);
+        this.uploadExecutor = builder.uploadExecutor != null ? builder.uploadExecutor : Executors.newCachedThreadPool();
+        this.taskExecutor = builder.taskExecutor;
+        this.stageExecutor = builder.stageExecutor != null ? builder.stageExecutor : Executors.newCachedThreadPool();
+        this.dedupIndex = builder.dedupIndex;
+        this.journal = builder.journal;
+        this.uploadVerifier = new UploadVerifier(logger, remoteClientFactory, uploadExecutor);
+        this.concurrencyController = new ConcurrencyController(logger, RemoteClientFactory.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        this.streamRelay = new StreamRelay(logger, remoteClientFactory, uploadExecutor);
+        this.uploadedFilesConsumer = builder.uploadedFilesConsumer != null ? builder.uploadedFilesConsumer : (_, _) -> {};
     }
 
     @Override
@@ -46,56 +102,561 @@ public class SourceFTPTransfer implements Transfer {
             RemoteClient sourceRemoteClient = remoteClientFactory.create(configGroup.source());
             sourceRemoteClients.add(sourceRemoteClient);
 
-            TransferTask transferTask = getTransferTask(sourceRemoteClient, configGroup.source(), configGroup.destinations());
-            transferTasks.add(transferTask);
+            SourcePipeline pipeline = new SourcePipeline(sourceRemoteClient, configGroup);
+            pipelines.add(pipeline);
+            pipeline.start();
+            scheduleTask(pipeline::download, configGroup);
         }
-        executeScheduledTasks();
     }
 
-    private TransferTask getTransferTask(RemoteClient sourceRemoteClient, ServerConfig source, List<ServerConfig> destinations) {
-        return () -> {
+    /**
+     * Queue depth, throughput and utilization of each stage, per source hostname. Rates are measured since the
+     * previous snapshot of the same source, which is also taken after every download run that found files.
+     */
+    public Map<String, List<StageStats>> pipelineStats() {
+        Map<String, List<StageStats>> stats = new LinkedHashMap<>();
+        pipelines.forEach(pipeline -> stats.put(pipeline.hostname, pipeline.stats()));
+        return stats;
+    }
+
+    /**
+     * Current adaptive concurrency limit of every destination host uploaded to so far, keyed by hostname and port.
+     */
+    public Map<String, HostConcurrency> hostConcurrency() {
+        return concurrencyController.snapshot();
+    }
+
+    /**
+     * Moves one source's files through download, upload and archive. Downloads run on the schedule and hand each
+     * file on as soon as it is complete. Upload and archive each have their own workers and a bounded queue in front,
+     * so file N+1 downloads while file N uploads and file N-1 is archived, and a slow stage holds back the ones
+     * before it rather than filling staging.
+     */
+    private final class SourcePipeline {
+        private final RemoteClient sourceRemoteClient;
+        private final ConfigGroups configGroup;
+        private final String hostname;
+        private final String stagingFolder;
+        private final Semaphore uploadPermits;
+        // Staged files between the download and the end of the archive stage, so none is queued twice
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        private final StageMeter downloadMeter = new StageMeter("download", 1);
+        private final ConcurrencyController.Share share;
+        private final PipelineStage<QueuedFile> uploadStage;
+        private final PipelineStage<String> archiveStage;
+
+        private SourcePipeline(RemoteClient sourceRemoteClient, ConfigGroups configGroup) {
+            this.sourceRemoteClient = sourceRemoteClient;
+            this.configGroup = configGroup;
+            this.hostname = configGroup.source().credentials().hostname();
+            this.stagingFolder = baseInboundFolder + "\\" + hostname;
+            int maxParallelUploads = configGroup.maxParallelUploads() != null && configGroup.maxParallelUploads() > 0
+                    ? configGroup.maxParallelUploads()
+                    : Math.max(1, configGroup.destinations().size());
+            this.uploadPermits = new Semaphore(maxParallelUploads);
+            this.share = ConcurrencyController.Share.of(configGroup);
+            List<TransferOptions> bundling = configGroup.destinations().stream()
+                    .filter(destination -> destination.credentials().type() != CredentialType.LOCAL)
+                    .map(ServerConfig::options)
+                    .filter(options -> options.bundleThreshold() > 0)
+                    .toList();
+            int maxUploadBatch = bundling.isEmpty() ? MAX_UPLOAD_BATCH : MAX_BUNDLING_BATCH;
+            // The youngest max age of all bundling destinations, so no file waits longer than any of them allows
+            Duration linger = Duration.ofMillis(bundling.stream().mapToLong(TransferOptions::maxBundleAgeMillis)
+                    .filter(age -> age > 0).min().orElse(0));
+            this.uploadStage = new PipelineStage<>(logger, "upload", Math.max(UPLOAD_QUEUE_CAPACITY, maxUploadBatch), UPLOAD_WORKERS,
+                    maxUploadBatch, linger, QueuedFile.order(configGroup.fileOrder()), this::upload);
+            this.archiveStage = new PipelineStage<>(logger, "archive", ARCHIVE_QUEUE_CAPACITY, 1, MAX_ARCHIVE_BATCH, this::archive);
+        }
+
+        private void start() {
+            uploadStage.start(stageExecutor);
+            archiveStage.start(stageExecutor);
+        }
+
+        private void stop() {
+            uploadStage.stop();
+            archiveStage.stop();
+        }
+
+        private List<StageStats> stats() {
+            return List.of(downloadMeter.snapshot(0, 0), uploadStage.stats(), archiveStage.stats());
+        }
+
+        /**
+         * The scheduled run. Files an earlier run left in staging go into the pipeline first, then each new download.
+         */
+        private void download() {
             try {
                 if(!sourceRemoteClient.isConnected())
                     sourceRemoteClient.connect();
 
                 if (sourceRemoteClient.isConnected()) {
-                    String sourceStagingFolder = baseInboundFolder + "\\" + source.credentials().hostname();
-                    sourceRemoteClient.download(sourceStagingFolder, source.folderPath());
+                    if(configGroup.relay() && !relay(sourceRemoteClient, configGroup)){
+                        return;
+                    }
+
+                    enqueueLeftovers();
+                    resumeSourceDeletes(sourceRemoteClient, configGroup.source());
+                    long start = System.nanoTime();
+                    AtomicInteger downloaded = new AtomicInteger();
+                    AtomicLong waited = new AtomicLong();
+                    sourceRemoteClient.download(stagingFolder, configGroup.source().folderPath(), fileName -> {
+                        downloaded.incrementAndGet();
+                        // A changed file downloaded under a name still in the journal, e.g. by FTPS which journals no
+                        // downloads, must not pass for the copy the destinations already have
+                        if(journal != null){
+                            journal.staged(hostname, fileName);
+                        }
+                        waited.addAndGet(enqueue(fileName));
+                    });
+                    // Time spent waiting for the upload queue is the upload stage's, not this one's
+                    downloadMeter.record(downloaded.get(), System.nanoTime() - start - waited.get());
+                    if(downloaded.get() > 0){
+                        logger.info("[{}] Pipeline {}, destination hosts {}", hostname, stats(), hostConcurrency().values());
+                    }
+                }else{
+                    logger.error("Not connected to {}", sourceRemoteClient.getHostName());
+                }
+            } catch (IOException e) {
+                logger.error("Error while trying to transfer from {}. Message: {}", hostname, e.getMessage());
+            }
+        }
 
-                    for (ServerConfig destination : destinations) {
-                        switch (destination.credentials().type()){
-                            case SFTP, FTPS, FTP -> {
-                                RemoteClient destinationRemoteClient = destinationRemoteClients.computeIfAbsent(destination.credentials().hostname(),
-                                        _ -> remoteClientFactory.create(destination));
+        private void enqueueLeftovers() {
+            File[] files = new File(stagingFolder).listFiles(file -> file.isFile() && !StagedFile.isPartial(file.getName()));
+            if(files != null){
+                Comparator<QueuedFile> order = QueuedFile.order(configGroup.fileOrder());
+                if(order == null){
+                    for (File file : files) {
+                        enqueue(file.getName());
+                    }
+                }else{
+                    // The queue only orders what fits in it, so the leftovers go in sorted
+                    Arrays.stream(files)
+                            .map(file -> new QueuedFile(file.getName(), file.length(), file.lastModified()))
+                            .sorted(order)
+                            .forEach(this::enqueue);
+                }
+            }
+        }
 
-                                if(!destinationRemoteClient.isConnected())
-                                    destinationRemoteClient.connect();
+        /**
+         * Queues a staged file for upload unless it is already in the pipeline. Returns the nanoseconds spent waiting
+         * for room in the queue.
+         */
+        private long enqueue(String fileName) {
+            if(configGroup.fileOrder() == FileOrder.ARRIVAL){
+                return enqueue(new QueuedFile(fileName, 0, 0));
+            }
+            File file = new File(stagingFolder, fileName);
+            return enqueue(new QueuedFile(fileName, file.length(), file.lastModified()));
+        }
 
-                                if (destinationRemoteClient.isConnected()) {
-                                    destinationRemoteClient.upload(sourceStagingFolder, destination.folderPath());
-                                }
-                            }
+        private long enqueue(QueuedFile queuedFile) {
+            if(!inFlight.add(queuedFile.name())){
+                return 0;
+            }
+            long start = System.nanoTime();
+            try {
+                uploadStage.put(queuedFile);
+            } catch (InterruptedException e) {
+                // Stays in staging for the next run
+                inFlight.remove(queuedFile.name());
+                Thread.currentThread().interrupt();
+            }
+            return System.nanoTime() - start;
+        }
 
-                            case LOCAL -> Util.moveFile(sourceStagingFolder, destination.folderPath());
-                        }
+        /**
+         * Delivers a batch of staged files to every destination. Files that didn't reach all of them stay in staging
+         * and the next run queues them again.
+         */
+        private void upload(List<QueuedFile> queuedFiles) {
+            List<String> fileNames = queuedFiles.stream().map(QueuedFile::name).toList();
+            Set<String> handedOn = new HashSet<>();
+            try {
+                List<StagedFile> stagedFiles = openStagedFiles(stagingFolder, fileNames);
+                if(stagedFiles.isEmpty()){
+                    return;
+                }
+
+                List<DestinationResult> results;
+                try {
+                    Map<StagedFile, String> contentHashes = configGroup.deduplicate() ? hashStagedFiles(stagedFiles) : Map.of();
+                    results = uploadToDestinations(hostname, share, stagedFiles, contentHashes, configGroup.destinations(), uploadPermits);
+                } finally {
+                    closeStagedFiles(stagedFiles);
+                }
+                List<DestinationResult> failures = results.stream().filter(result -> !result.success()).toList();
+                if(failures.isEmpty()){
+                    for (StagedFile stagedFile : stagedFiles) {
+                        archiveStage.put(stagedFile.name());
+                        handedOn.add(stagedFile.name());
                     }
                 }else{
-                    logger.error("Not connected to {}", sourceRemoteClient.getHostName());
+                    failures.forEach(failure -> logger.error("[{}] Delivery to {} failed. Message: {}",
+                            hostname, failure.destination().credentials().hostname(), failure.message()));
+                }
+            } catch (IOException e) {
+                logger.error("Error while opening staged files from {}. Message: {}", hostname, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                fileNames.stream().filter(fileName -> !handedOn.contains(fileName)).forEach(inFlight::remove);
+            }
+        }
+
+        private void archive(List<String> fileNames) {
+            try {
+                SourceFTPTransfer.this.archive(hostname, fileNames);
+            } finally {
+                fileNames.forEach(inFlight::remove);
+            }
+        }
+    }
+
+    /**
+     * A staged file waiting for upload, with what the source's file order sorts by. Size and modified are only read
+     * when the order needs them.
+     */
+    private record QueuedFile(String name, long size, long modifiedMillis) {
+        static Comparator<QueuedFile> order(FileOrder fileOrder) {
+            return switch (fileOrder) {
+                case ARRIVAL -> null;
+                case SMALLEST_FIRST -> Comparator.comparingLong(QueuedFile::size).thenComparing(QueuedFile::name);
+                case OLDEST_FIRST -> Comparator.comparingLong(QueuedFile::modifiedMillis).thenComparing(QueuedFile::name);
+            };
+        }
+    }
+
+    /**
+     * Deletes source files whose download was journaled but not their delete, e.g. because the process stopped in
+     * between. A file that is gone already counts as deleted. A file that no longer has the size and mtime it was
+     * downloaded with is a new one under the same name, it is left for the next download. A file that can't be
+     * checked or deleted is retried next run, without holding up the others.
+     */
+    private void resumeSourceDeletes(RemoteClient sourceRemoteClient, ServerConfig source) {
+        if(journal == null){
+            return;
+        }
+        String hostname = source.credentials().hostname();
+        for (TransferJournal.Downloaded downloaded : journal.pendingSourceDeletes(hostname)) {
+            String fileName = downloaded.fileName();
+            String sourcePath = source.folderPath().concat("/").concat(fileName);
+            try {
+                Optional<ListingCache.Entry> entry = sourceRemoteClient.stat(sourcePath);
+                if(entry.isEmpty()){
+                    logger.info("[{}] '{}' was already deleted", hostname, fileName);
+                }else if(entry.get().size() != downloaded.size() || entry.get().modified() != downloaded.modifiedMillis()){
+                    logger.warn("[{}] Not deleting '{}', it changed since it was downloaded before the last stop", hostname, fileName);
+                }else{
+                    sourceRemoteClient.delete(sourcePath);
+                    logger.info("[{}] Deleted '{}', it had been downloaded before the last stop", hostname, fileName);
+                }
+                journal.sourceDeleted(hostname, fileName);
+            } catch (IOException | RuntimeException e) {
+                logger.error("[{}] Failed to delete '{}', it will be retried. Message: {}", hostname, fileName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands the delivered files to the uploaded files consumer, once their uploads are on disk in the journal.
+     */
+    private void archive(String hostname, List<String> fileNames) {
+        if(journal != null){
+            journal.sync();
+        }
+        uploadedFilesConsumer.accept(fileNames, hostname);
+        if(journal != null){
+            fileNames.forEach(fileName -> journal.archived(hostname, fileName));
+        }
+    }
+
+    /**
+     * Streams every file in the source folder straight to all destinations and removes it from the source
+     * once every destination has it. Files that fail stay on the source.
+     * Returns true when the staging path should run afterwards to pick those files up.
+     */
+    private boolean relay(RemoteClient sourceRemoteClient, ConfigGroups configGroup) throws IOException {
+        ServerConfig source = configGroup.source();
+        int failed = 0;
+        for (FileInfo fileInfo : List.copyOf(sourceRemoteClient.listContents(source.folderPath()))) {
+            if(fileInfo.fileType() != FileType.FILE){
+                continue;
+            }
+            String sourcePath = source.folderPath().concat("/").concat(fileInfo.name());
+            List<DestinationResult> failures = streamRelay
+                    .relay(sourceRemoteClient, sourcePath, fileInfo.name(), configGroup.destinations())
+                    .stream().filter(result -> !result.success()).toList();
+            if(failures.isEmpty()){
+                sourceRemoteClient.delete(sourcePath);
+            }else{
+                failed++;
+                failures.forEach(failure -> logger.error("[{}] Relay of '{}' to {} failed. Message: {}", source.credentials().hostname(),
+                        fileInfo.name(), failure.destination().credentials().hostname(), failure.message()));
+            }
+        }
+        return failed > 0 && configGroup.relayFallbackToStaging();
+    }
+
+    /**
+     * Uploads the staged files to every destination concurrently, at most uploadPermits at a time,
+     * and waits until each one has either finished or failed. All destinations read the same mappings.
+     * Files with a content hash that the dedup index says a destination already has are not sent to it again, nor are
+     * files the journal has as uploaded to it.
+     * Destinations with verify set have their uploads checked in the background, which frees their upload permit
+     * for the next destination straight away. A failed check turns that destination's result into a failure.
+     * Bundled files are checked by the bundle's size as part of the upload.
+     */
+    private List<DestinationResult> uploadToDestinations(String sourceHost, ConcurrencyController.Share share, List<StagedFile> stagedFiles,
+                                                         Map<StagedFile, String> contentHashes,
+                                                         List<ServerConfig> destinations, Semaphore uploadPermits) {
+        List<Future<DestinationResult>> futures = new ArrayList<>();
+        List<CompletableFuture<DestinationResult>> verifications = Collections.synchronizedList(new ArrayList<>());
+        for (ServerConfig destination : destinations) {
+            futures.add(uploadExecutor.submit(() -> {
+                uploadPermits.acquire();
+                try {
+                    List<StagedFile> pending = stagedFiles.stream()
+                            .filter(stagedFile -> !isJournaled(sourceHost, stagedFile, destination))
+                            .filter(stagedFile -> !isDelivered(contentHashes.get(stagedFile), destination))
+                            .toList();
+                    if(pending.size() < stagedFiles.size()){
+                        logger.info("Skipping {} file(s) {} already has", stagedFiles.size() - pending.size(), destination.credentials().hostname());
+                    }
+                    Map<StagedFile, UploadedFile> digested = new HashMap<>();
+                    List<StagedFile> individual = pending.isEmpty() ? pending : uploadToDestination(pending, destination, share, digested);
+                    if(individual.size() < pending.size()){
+                        Set<StagedFile> unbundled = new HashSet<>(individual);
+                        pending.stream().filter(stagedFile -> !unbundled.contains(stagedFile))
+                                .forEach(stagedFile -> recordDelivery(sourceHost, stagedFile, contentHashes.get(stagedFile), destination));
+                    }
+                    if(!individual.isEmpty() && isVerified(destination)){
+                        verifications.add(verify(sourceHost, individual, digested, contentHashes, destination));
+                    }else{
+                        individual.forEach(stagedFile -> recordDelivery(sourceHost, stagedFile, contentHashes.get(stagedFile), destination));
+                    }
+                    return DestinationResult.success(destination);
+                } catch (IOException | RuntimeException e) {
+                    return DestinationResult.failure(destination, e.getMessage());
+                } finally {
+                    uploadPermits.release();
+                }
+            }));
+        }
+
+        List<DestinationResult> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(DestinationResult.failure(destinations.get(i), "Interrupted"));
+            } catch (ExecutionException e) {
+                results.add(DestinationResult.failure(destinations.get(i), e.getCause().getMessage()));
+            }
+        }
+
+        for (CompletableFuture<DestinationResult> verification : verifications) {
+            DestinationResult verified = verification.join();
+            if(!verified.success()){
+                results.replaceAll(result -> result.destination() == verified.destination() ? verified : result);
+            }
+        }
+        return results;
+    }
+
+    private boolean isVerified(ServerConfig destination) {
+        return destination.credentials().type() != CredentialType.LOCAL && destination.options().verify();
+    }
+
+    /**
+     * Checks the uploaded files against the destination and only then records them as delivered.
+     */
+    private CompletableFuture<DestinationResult> verify(String sourceHost, List<StagedFile> uploaded, Map<StagedFile, UploadedFile> digested,
+                                                        Map<StagedFile, String> contentHashes, ServerConfig destination) {
+        return uploadVerifier.verify(destination, uploaded.stream().map(digested::get).toList())
+                .thenApply(result -> {
+                    if(result.success()){
+                        uploaded.forEach(stagedFile -> recordDelivery(sourceHost, stagedFile, contentHashes.get(stagedFile), destination));
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Uses the hashes taken while the files were downloaded, and hashes the rest, like leftovers from before a restart
+     * or segmented downloads, in parallel straight from their mappings, the same pages the uploads read.
+     */
+    private Map<StagedFile, String> hashStagedFiles(List<StagedFile> stagedFiles) {
+        Map<StagedFile, String> contentHashes = new HashMap<>();
+        if(dedupIndex != null){
+            DownloadDigests downloadDigests = remoteClientFactory.downloadDigests();
+            Map<StagedFile, CompletableFuture<String>> futures = new HashMap<>();
+            stagedFiles.forEach(stagedFile -> futures.put(stagedFile,
+                    dedupIndex.contentHash(stagedFile, downloadDigests.take(stagedFile.path()))));
+            futures.forEach((stagedFile, future) -> {
+                try {
+                    contentHashes.put(stagedFile, future.join());
+                } catch (CompletionException e) {
+                    logger.warn("Unable to hash {}, it won't be deduplicated. Message: {}", stagedFile.name(), e.getMessage());
+                }
+            });
+        }
+        return contentHashes;
+    }
+
+    private boolean isDelivered(String contentHash, ServerConfig destination) {
+        return contentHash != null && dedupIndex != null && dedupIndex.isDelivered(contentHash, destination);
+    }
+
+    private boolean isJournaled(String sourceHost, StagedFile stagedFile, ServerConfig destination) {
+        return journal != null && journal.isUploaded(sourceHost, stagedFile.name(), destination);
+    }
+
+    private void recordDelivery(String sourceHost, StagedFile stagedFile, String contentHash, ServerConfig destination) {
+        if(journal != null){
+            journal.uploaded(sourceHost, stagedFile.name(), destination);
+        }
+        if(contentHash != null && dedupIndex != null){
+            dedupIndex.recordDelivery(contentHash, destination);
+        }
+    }
+
+    /**
+     * Returns the files that went up as they are, the others went in bundles or gzip files.
+     * For destinations with verify set the files that went up as they are were hashed on the way, into digested.
+     */
+    private List<StagedFile> uploadToDestination(List<StagedFile> stagedFiles, ServerConfig destination, ConcurrencyController.Share share,
+                                                 Map<StagedFile, UploadedFile> digested) throws IOException {
+        switch (destination.credentials().type()){
+            case SFTP, FTPS, FTP -> {
+                // Waits for its source's turn on a slot under the host's adaptive limit, whose outcome then moves that limit
+                long bytes = stagedFiles.stream().mapToLong(StagedFile::size).sum();
+                ConcurrencyController.Ticket ticket = concurrencyController.acquire(destination, share, bytes);
+                boolean success = false;
+                try {
+                    List<StagedFile> small = stagedFiles.stream().filter(stagedFile -> destination.options().isBundled(stagedFile.size())).toList();
+                    boolean bundled = small.size() >= MIN_BUNDLE_FILES;
+                    List<StagedFile> individual = bundled
+                            ? stagedFiles.stream().filter(stagedFile -> !destination.options().isBundled(stagedFile.size())).toList()
+                            : stagedFiles;
+                    RemoteClient destinationRemoteClient = remoteClientFactory.borrow(destination);
+                    try {
+                        if(!individual.isEmpty() && destination.options().compression() == Compression.GZIP){
+                            for (StagedFile stagedFile : individual) {
+                                StreamUploads.uploadGzipped(destinationRemoteClient, destination, stagedFile.name(), stagedFile::writeTo);
+                            }
+                            individual = List.of();
+                        }else if(!individual.isEmpty() && isVerified(destination)){
+                            String algorithm = uploadVerifier.algorithm(destination);
+                            for (StagedFile stagedFile : individual) {
+                                digested.put(stagedFile, StreamUploads.uploadDigested(destinationRemoteClient, destination,
+                                        stagedFile.name(), algorithm, stagedFile::writeTo));
+                            }
+                        }else if(!individual.isEmpty()){
+                            destinationRemoteClient.uploadStaged(individual, destination.folderPath());
+                        }
+                        if(bundled){
+                            for (List<StagedFile> bundle : FileBundle.split(small, destination.options().maxBundleBytes())) {
+                                uploadBundle(destinationRemoteClient, bundle, destination);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        remoteClientFactory.invalidate(destination, destinationRemoteClient);
+                        throw e;
+                    }
+                    remoteClientFactory.release(destination, destinationRemoteClient);
+                    success = true;
+                    return individual;
+                } finally {
+                    concurrencyController.release(ticket, bytes, success);
+                }
+            }
+
+            // Copy rather than move, the other destinations still need the staged files
+            case LOCAL -> {
+                for (StagedFile stagedFile : stagedFiles) {
+                    if(destination.options().unpackBundles() && FileBundle.isBundle(stagedFile.name())){
+                        List<Path> unpacked = FileBundle.unpack(stagedFile, Path.of(destination.folderPath()));
+                        logger.info("[{}] Unpacked {} file(s) from {}", destination.credentials().hostname(), unpacked.size(), stagedFile.name());
+                    }else{
+                        stagedFile.copyTo(Path.of(destination.folderPath()));
+                    }
+                }
+            }
+        }
+        return stagedFiles;
+    }
+
+    /**
+     * Streams the files into one zip on the destination. With verify set the bundle's size is checked straight away,
+     * its files can't be checked one by one.
+     */
+    private void uploadBundle(RemoteClient remoteClient, List<StagedFile> files, ServerConfig destination) throws IOException {
+        String name = FileBundle.newName();
+        long written = StreamUploads.upload(remoteClient, destination, name, outputStream -> FileBundle.write(files, outputStream));
+        logger.info("[{}] Uploaded {} file(s) as {}, {} bytes", destination.credentials().hostname(), files.size(), name, written);
+    }
+
+    private List<StagedFile> openStagedFiles(String sourceStagingFolder, List<String> fileNames) throws IOException {
+        List<StagedFile> stagedFiles = new ArrayList<>();
+        try {
+            for (String fileName : fileNames) {
+                Path file = Path.of(sourceStagingFolder, fileName);
+                if(Files.isRegularFile(file) && !StagedFile.isPartial(fileName)){
+                    stagedFiles.add(new StagedFile(file));
                 }
+            }
+        } catch (IOException e) {
+            closeStagedFiles(stagedFiles);
+            throw e;
+        }
+        return stagedFiles;
+    }
+
+    private void closeStagedFiles(List<StagedFile> stagedFiles) {
+        for (StagedFile stagedFile : stagedFiles) {
+            try {
+                stagedFile.close();
             } catch (IOException e) {
-                logger.error("Error while trying to transfer from {}. Message: {}", source.credentials().hostname(), e.getMessage());
+                logger.warn("Error while closing staged file {}. Message: {}", stagedFile.path(), e.getMessage());
             }
-        };
+        }
     }
 
-    private void executeScheduledTasks() {
-        scheduler.scheduleAtFixedRate(()-> transferTasks.forEach(TransferTask::run), 0, interval, timeUnit);
+    /**
+     * Schedules a source on its own. Fixed delay means a slow run pushes back only its own next run,
+     * and never overlaps with itself or holds up any other source.
+     * With a task executor the scheduler only keeps time and the run itself happens on that executor.
+     */
+    private void scheduleTask(TransferTask transferTask, ConfigGroups configGroup) {
+        int sourceInterval = configGroup.interval() != null && configGroup.interval() > 0 ? configGroup.interval() : interval;
+        TimeUnit sourceTimeUnit = configGroup.timeUnit() != null ? configGroup.timeUnit() : timeUnit;
+
+        logger.info("Scheduling {} every {} {}", configGroup.source().credentials().hostname(), sourceInterval, sourceTimeUnit);
+        Executor executor = taskExecutor != null ? taskExecutor : Runnable::run;
+        FixedDelayTask task = new FixedDelayTask(scheduler, executor, () -> {
+            try {
+                transferTask.run();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while transferring from {}. Message: {}",
+                        configGroup.source().credentials().hostname(), e.getMessage());
+            }
+        }, sourceInterval, sourceTimeUnit);
+        scheduledTasks.add(task);
+        task.start();
     }
 
     @Override
     public void stopTransfer() {
+        scheduledTasks.forEach(FixedDelayTask::cancel);
+        pipelines.forEach(SourcePipeline::stop);
         closeAllSourceRemoteClients(sourceRemoteClients);
-        closeAllDestinationRemoteClients(destinationRemoteClients);
+        uploadExecutor.shutdown();
+        remoteClientFactory.close();
         scheduler.shutdown();
         try {
             if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
@@ -104,17 +665,10 @@ public class SourceFTPTransfer implements Transfer {
         } catch (InterruptedException e) {
             scheduler.shutdownNow();
         }
-    }
-
-    private void closeAllDestinationRemoteClients(Map<String, RemoteClient> destinationRemoteClients){
-        destinationRemoteClients.forEach((_ , client) -> {
-            try {
-                client.disconnect();
-                logger.info("Disconnected from {}? {}", client.getHostName(), client.isConnected());
-            } catch (IOException e) {
-                logger.error("Error while disconnecting. Message: {}", e.getMessage());
-            }
-        });
+        if(taskExecutor != null){
+            taskExecutor.shutdown();
+        }
+        stageExecutor.shutdown();
     }
 
     private void closeAllSourceRemoteClients(List<RemoteClient> clients) {
@@ -139,6 +693,12 @@ public class SourceFTPTransfer implements Transfer {
         private int interval = 5;
         private RemoteClientFactory remoteClientFactory;
         private ScheduledExecutorService scheduler;
+        private ExecutorService uploadExecutor;
+        private ExecutorService taskExecutor;
+        private ExecutorService stageExecutor;
+        private DedupIndex dedupIndex;
+        private TransferJournal journal;
+        private BiConsumer<List<String>, String> uploadedFilesConsumer;
         private TimeUnit timeUnit;
 
         public Builder withLogger(Logger logger){
@@ -171,6 +731,52 @@ public class SourceFTPTransfer implements Transfer {
             return this;
         }
 
+        public Builder withUploadExecutor(ExecutorService uploadExecutor) {
+            this.uploadExecutor = uploadExecutor;
+            return this;
+        }
+
+        /**
+         * Runs each scheduled transfer on this executor instead of on the scheduler's own threads,
+         * e.g. a virtual-thread-per-task executor so the scheduler can be a single timer thread.
+         */
+        public Builder withTaskExecutor(ExecutorService taskExecutor) {
+            this.taskExecutor = taskExecutor;
+            return this;
+        }
+
+        /**
+         * Runs the upload and archive stage workers of every source's pipeline. Defaults to a cached thread pool.
+         */
+        public Builder withStageExecutor(ExecutorService stageExecutor) {
+            this.stageExecutor = stageExecutor;
+            return this;
+        }
+
+        /**
+         * Consulted before uploading for groups with deduplicate set. The caller closes it.
+         */
+        public Builder withDedupIndex(DedupIndex dedupIndex) {
+            this.dedupIndex = dedupIndex;
+            return this;
+        }
+
+        /**
+         * Journals uploads and archiving so a restart only redoes the steps that didn't happen. The caller closes it.
+         */
+        public Builder withJournal(TransferJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * Called with the staged file names and the source hostname once every destination has received them.
+         */
+        public Builder withUploadedFilesConsumer(BiConsumer<List<String>, String> uploadedFilesConsumer) {
+            this.uploadedFilesConsumer = uploadedFilesConsumer;
+            return this;
+        }
+
         public SourceFTPTransfer build() {
             if (baseInboundFolder == null) {
                 throw new IllegalStateException("Base inbound folder must be set.");
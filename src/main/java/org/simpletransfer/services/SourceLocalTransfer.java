@@ -2,40 +2,82 @@ package org.simpletransfer.services;
 
 import org.apache.logging.log4j.Logger;
 import org.simpletransfer.models.*;
+import org.simpletransfer.utils.DedupIndex;
+import org.simpletransfer.utils.HandledFiles;
 import org.simpletransfer.utils.Util;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.Callable;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transfers data for sources whose credential type is Local.
+ * Detected files are queued and picked up in batches by upload workers, each batch going to a destination
+ * over a single pooled connection.
+ * <p>
+ * With a {@link HandledFiles} record each source folder is also reconciled, at startup and whenever the folder
+ * monitor reports lost events. The tree is scanned and every file that is neither handled nor already queued is fed
+ * through the monitor as if it had just been created.
  * */
 public class SourceLocalTransfer implements Transfer {
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final int UPLOAD_WORKERS = 2;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final Duration BATCH_WINDOW = Duration.ofMillis(500);
+
     private final Logger logger;
-    private final List<FolderMonitor> folderMonitors;
-    private final Map<String, RemoteClient> remoteClients;
-    private final List<Callable<Void>> callableList;
-    private final ExecutorService executorService;
+    private final FolderMonitor folderMonitor;
     private final RemoteClientFactory remoteClientFactory;
+    private final DedupIndex dedupIndex;
+    private final HandledFiles handledFiles;
+    private final ReconciliationScanner scanner;
+    private final ExecutorService verifyExecutor;
+    private final UploadVerifier uploadVerifier;
+    private final ExecutorService uploadExecutor;
+    private final ConcurrencyController concurrencyController;
+    private volatile boolean running = true;
 
     private SourceLocalTransfer(Builder builder){
-        folderMonitors = new ArrayList<>();
-        remoteClients = new WeakHashMap<>();
-        callableList = new ArrayList<>();
-        this.executorService = builder.executorService;
+        this.folderMonitor = builder.folderMonitor != null ? builder.folderMonitor : new FolderMonitor();
         this.remoteClientFactory = builder.remoteClientFactory;
+        this.dedupIndex = builder.dedupIndex;
+        this.handledFiles = builder.handledFiles;
+        this.scanner = new ReconciliationScanner(Runtime.getRuntime().availableProcessors());
         this.logger = builder.logger;
+        this.verifyExecutor = builder.verifyExecutor != null ? builder.verifyExecutor : Executors.newCachedThreadPool();
+        this.uploadVerifier = new UploadVerifier(logger, remoteClientFactory, verifyExecutor);
+        this.uploadExecutor = builder.uploadExecutor != null ? builder.uploadExecutor : Executors.newCachedThreadPool();
+        this.concurrencyController = new ConcurrencyController(logger, RemoteClientFactory.DEFAULT_MAX_CONNECTIONS_PER_HOST);
     }
 
     public static class Builder{
         private Logger logger;
         private RemoteClientFactory remoteClientFactory;
-        private ExecutorService executorService;
+        private FolderMonitor folderMonitor;
+        private DedupIndex dedupIndex;
+        private HandledFiles handledFiles;
+        private ExecutorService verifyExecutor;
+        private ExecutorService uploadExecutor;
 
         public Builder withLogger(Logger logger){
             this.logger = logger;
@@ -47,8 +89,44 @@ public class SourceLocalTransfer implements Transfer {
             return this;
         }
 
-        public Builder withExecutorService(ExecutorService executorService){
-            this.executorService = executorService;
+        /**
+         * The shared monitor every source folder is registered with. Defaults to a new one.
+         */
+        public Builder withFolderMonitor(FolderMonitor folderMonitor){
+            this.folderMonitor = folderMonitor;
+            return this;
+        }
+
+        /**
+         * Consulted before uploading for groups with deduplicate set. The caller closes it.
+         */
+        public Builder withDedupIndex(DedupIndex dedupIndex){
+            this.dedupIndex = dedupIndex;
+            return this;
+        }
+
+        /**
+         * Records the files that have been delivered, so source folders can be reconciled against it. Without it no
+         * reconciliation is done. The caller closes it.
+         */
+        public Builder withHandledFiles(HandledFiles handledFiles){
+            this.handledFiles = handledFiles;
+            return this;
+        }
+
+        /**
+         * Runs upload verification for destinations with verify set. Defaults to a cached thread pool.
+         */
+        public Builder withVerifyExecutor(ExecutorService verifyExecutor){
+            this.verifyExecutor = verifyExecutor;
+            return this;
+        }
+
+        /**
+         * Runs the upload workers that drain the detected files queues. Defaults to a cached thread pool.
+         */
+        public Builder withUploadExecutor(ExecutorService uploadExecutor){
+            this.uploadExecutor = uploadExecutor;
             return this;
         }
 
@@ -63,58 +141,372 @@ public class SourceLocalTransfer implements Transfer {
             ServerConfig source = configGroup.source();
             if(source.credentials().type().equals(CredentialType.LOCAL)){
                 logger.info("Transfer for {}", source.credentials().hostname());
-                FolderMonitor folderMonitor = new FolderMonitor(source.folderPath());
-                folderMonitors.add(folderMonitor);
-                callableList.add(() -> {
-                    folderMonitor.startMonitoring(sourcePath -> {
-                        for (ServerConfig destination : configGroup.destinations()) {
-                            Credentials credentials = destination.credentials();
-                            switch (credentials.type()){
-                                case FTP, FTPS, SFTP -> {
-                                    try {
-                                        RemoteClient remoteClient = remoteClients.computeIfAbsent(credentials.hostname(),
-                                                _ -> remoteClientFactory.create(destination));
-                                        remoteClient.connect();
-                                        if(remoteClient.isConnected()){
-                                            remoteClient.upload(sourcePath, destination.folderPath());
-                                        }
-                                    } catch (IOException e) {
-                                        logger.error("Error on SourceLocalTransfer Upload for {}. Message: {}", credentials.hostname(), e.getMessage());
-                                    }
+
+                // The monitor only queues, uploads happen on the workers so event handling never waits on the network
+                BlockingQueue<String> detectedFiles = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                // Files that are queued or being delivered, so a rescan doesn't queue them a second time
+                Set<String> queued = ConcurrentHashMap.newKeySet();
+                Reconciliation reconciliation = new Reconciliation(configGroup, queued);
+                for (int i = 0; i < UPLOAD_WORKERS; i++) {
+                    uploadExecutor.execute(() -> runUploadWorker(configGroup, detectedFiles, queued, reconciliation));
+                }
+                // Called on the monitor's threads, which all sources share, so a full queue drops the file instead of
+                // waiting. Once the queue has room again a reconciliation rescan finds what was dropped.
+                reconciliation.watch = folderMonitor.register(source.folderPath(), source.options().recursive(),
+                        Duration.ofMillis(Math.max(0, source.options().quietPeriodMillis())), source.options().requireExclusiveLock(),
+                        sourcePath -> {
+                            if(isHandled(Path.of(sourcePath)) || !queued.add(sourcePath)){
+                                return;
+                            }
+                            if(!detectedFiles.offer(sourcePath)){
+                                queued.remove(sourcePath);
+                                if(!reconciliation.dropped.getAndSet(true)){
+                                    logger.warn("Upload queue for {} is full, new files wait for a rescan", source.folderPath());
                                 }
-                                case LOCAL -> Util.moveFile(sourcePath, destination
-                                        .folderPath()
-                                        .concat("\\")
-                                        .concat(sourcePath.substring(sourcePath.lastIndexOf('\\') + 1)));
                             }
-                        }
-                    });
+                        },
+                        reconciliation::request);
+                // Registered first, so files created while the scan runs are seen by one or the other
+                reconciliation.request();
+            }
+        }
+    }
 
-                    return null;
-                });
+    /**
+     * Rescans one source folder on request. Requests that arrive while a scan is running are folded into one more scan.
+     */
+    private final class Reconciliation {
+        private final ConfigGroups configGroup;
+        private final Set<String> queued;
+        private final AtomicInteger requests = new AtomicInteger();
+        // Set when a detected file didn't fit in the queue, the workers ask for a rescan once it has room again
+        private final AtomicBoolean dropped = new AtomicBoolean();
+        private volatile FolderMonitor.Watch watch;
+
+        private Reconciliation(ConfigGroups configGroup, Set<String> queued) {
+            this.configGroup = configGroup;
+            this.queued = queued;
+        }
+
+        private void request() {
+            // watch is unset only while registering, the request made right after covers that window
+            if(handledFiles == null || watch == null || !running){
+                return;
+            }
+            if(requests.getAndIncrement() == 0){
+                uploadExecutor.execute(this::run);
             }
         }
 
-        try {
-            executorService.invokeAll(callableList);
-        } catch (InterruptedException e) {
-            logger.error("Error while transfer. Message: {}", e.getMessage());
+        private void run() {
+            int seen;
+            do {
+                seen = requests.get();
+                scan();
+            } while (running && requests.addAndGet(-seen) != 0);
+        }
+
+        private void scan() {
+            ServerConfig source = configGroup.source();
+            Path root = Path.of(source.folderPath());
+            long start = System.nanoTime();
+            AtomicInteger missing = new AtomicInteger();
+            long scanned = scanner.scan(root, source.options().recursive(), (file, attributes) -> {
+                if(running && !queued.contains(file.toAbsolutePath().toString())
+                        && !handledFiles.isHandled(file, attributes.size(), attributes.lastModifiedTime().toMillis())){
+                    missing.incrementAndGet();
+                    watch.report(file);
+                }
+            });
+            logger.info("Reconciled {}: {} file(s) scanned, {} missed in {} ms", root, scanned, missing.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         }
     }
 
-    @Override
-    public void stopTransfer() {
-        folderMonitors.forEach(FolderMonitor::closeAll);
-        remoteClients.forEach((_, v) -> {
+    /**
+     * Takes detected files off the queue, gathering whatever else arrives within {@link #BATCH_WINDOW} into the same batch.
+     */
+    private void runUploadWorker(ConfigGroups configGroup, BlockingQueue<String> detectedFiles, Set<String> queued,
+                                 Reconciliation reconciliation) {
+        List<String> batch = new ArrayList<>();
+        while (running) {
             try {
-                if(v.isConnected()) {
-                    v.disconnect();
+                String first = detectedFiles.poll(1, TimeUnit.SECONDS);
+                if(first == null){
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + BATCH_WINDOW.toNanos();
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    String next = detectedFiles.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
                 }
-            } catch (IOException e) {
-                logger.error("Error while disconnecting. Message: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                deliver(batch, configGroup);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while delivering files from {}. Message: {}",
+                        configGroup.source().credentials().hostname(), e.getMessage());
+            } finally {
+                batch.forEach(queued::remove);
+            }
+            batch.clear();
+            if(detectedFiles.remainingCapacity() >= QUEUE_CAPACITY / 2 && reconciliation.dropped.compareAndSet(true, false)){
+                reconciliation.request();
+            }
+        }
+    }
+
+    /**
+     * Delivers the batch to every destination, then records the files that reached all of them as handled.
+     * Remote destinations go first and their verifications are waited for, since a Local destination moves the file
+     * away: a file that failed anywhere stays in the source folder, unhandled, so the next reconciliation retries it.
+     * Files a Local destination skips as duplicates are removed from the source folder, as if they had been moved.
+     */
+    private void deliver(List<String> batch, ConfigGroups configGroup) {
+        // Read up front, a Local destination moves the file away
+        Map<String, BasicFileAttributes> attributes = handledFiles != null ? readAttributes(batch) : Map.of();
+        Set<String> failed = new HashSet<>();
+        Set<String> duplicates = new HashSet<>();
+        ConcurrencyController.Share share = ConcurrencyController.Share.of(configGroup);
+        Map<Path, Optional<String>> contentHashes = configGroup.deduplicate() && dedupIndex != null
+                ? dedupIndex.contentHashes(batch.stream().map(Path::of).toList())
+                : Map.of();
+        List<Verification> verifications = new ArrayList<>();
+        for (ServerConfig destination : configGroup.destinations()) {
+            if(destination.credentials().type() != CredentialType.LOCAL){
+                failed.addAll(uploadBatch(pending(batch, contentHashes, destination), contentHashes, destination, share, verifications));
+            }
+        }
+        // An upload only counts once its check passed
+        for (Verification verification : verifications) {
+            if(!verification.passed()){
+                failed.add(verification.sourcePath());
+            }
+        }
+        for (ServerConfig destination : configGroup.destinations()) {
+            if(destination.credentials().type() == CredentialType.LOCAL){
+                List<String> pending = pending(batch, contentHashes, destination);
+                Set<String> moved = new HashSet<>(pending);
+                batch.stream().filter(sourcePath -> !moved.contains(sourcePath)).forEach(duplicates::add);
+                for (String sourcePath : pending) {
+                    if(failed.contains(sourcePath)){
+                        continue;
+                    }
+                    Util.moveFile(sourcePath, destination
+                            .folderPath()
+                            .concat("\\")
+                            .concat(sourcePath.substring(sourcePath.lastIndexOf('\\') + 1)));
+                    recordDelivery(contentHash(contentHashes, sourcePath), destination);
+                }
+            }
+        }
+        // A Local destination moves delivered files out of the source folder. The ones it already had leave it too,
+        // unless another destination still has to get them
+        duplicates.stream().filter(sourcePath -> !failed.contains(sourcePath)).forEach(Util::deleteFile);
+        attributes.forEach((sourcePath, attribute) -> {
+            if(!failed.contains(sourcePath)){
+                handledFiles.markHandled(Path.of(sourcePath), attribute.size(), attribute.lastModifiedTime().toMillis());
             }
         });
+    }
+
+    /**
+     * The files of the batch the destination doesn't have the content of yet.
+     */
+    private List<String> pending(List<String> batch, Map<Path, Optional<String>> contentHashes, ServerConfig destination) {
+        List<String> pending = batch.stream()
+                .filter(sourcePath -> !isDelivered(contentHash(contentHashes, sourcePath), destination))
+                .toList();
+        if(pending.size() < batch.size()){
+            logger.info("Skipping {} file(s) for {}, it already has the same content", batch.size() - pending.size(),
+                    destination.credentials().hostname());
+        }
+        return pending;
+    }
 
-        executorService.shutdown();
+    private static Map<String, BasicFileAttributes> readAttributes(List<String> batch) {
+        Map<String, BasicFileAttributes> attributes = new LinkedHashMap<>();
+        for (String sourcePath : batch) {
+            try {
+                attributes.put(sourcePath, Files.readAttributes(Path.of(sourcePath), BasicFileAttributes.class));
+            } catch (IOException ignored) {
+                // Gone already, nothing to record
+            }
+        }
+        return attributes;
+    }
+
+    private boolean isHandled(Path file) {
+        if(handledFiles == null){
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return handledFiles.isHandled(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Uploads a batch once its source's turn comes on the destination host, by priority and weight, under the host's
+     * adaptive limit. Returns the files that failed, the checks of the ones that went up go into verifications.
+     */
+    private List<String> uploadBatch(List<String> pending, Map<Path, Optional<String>> contentHashes, ServerConfig destination,
+                                     ConcurrencyController.Share share, List<Verification> verifications) {
+        if(pending.isEmpty()){
+            return List.of();
+        }
+        long bytes = pending.stream().mapToLong(SourceLocalTransfer::size).sum();
+        ConcurrencyController.Ticket ticket;
+        try {
+            ticket = concurrencyController.acquire(destination, share, bytes);
+        } catch (IOException e) {
+            logger.error("Error on SourceLocalTransfer Upload for {}. Message: {}", destination.credentials().hostname(), e.getMessage());
+            return pending;
+        }
+        boolean success = false;
+        try {
+            List<String> failed = uploadFiles(pending, contentHashes, destination, verifications);
+            success = failed.isEmpty();
+            return failed;
+        } finally {
+            concurrencyController.release(ticket, bytes, success);
+        }
+    }
+
+    private static long size(String sourcePath) {
+        try {
+            return Files.size(Path.of(sourcePath));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Uploads the files over one pooled connection. A file that fails is logged and skipped, and the rest of the batch
+     * continues on a fresh connection. Returns the files that failed.
+     */
+    private List<String> uploadFiles(List<String> pending, Map<Path, Optional<String>> contentHashes, ServerConfig destination,
+                                     List<Verification> verifications) {
+        Credentials credentials = destination.credentials();
+        RemoteClient remoteClient = null;
+        List<String> failed = new ArrayList<>();
+        int uploaded = 0;
+        for (String sourcePath : pending) {
+            UploadedFile uploadedFile = null;
+            try {
+                if(remoteClient == null){
+                    remoteClient = remoteClientFactory.borrow(destination);
+                }
+                Path localFile = Path.of(sourcePath);
+                if(isGzipped(destination)){
+                    StreamUploads.uploadGzipped(remoteClient, destination, localFile.getFileName().toString(),
+                            outputStream -> Files.copy(localFile, outputStream));
+                }else if(destination.options().verify()){
+                    // Hashed on the way up, so checking it never reads the file again, which a Local destination may move away
+                    uploadedFile = StreamUploads.uploadDigested(remoteClient, destination, localFile.getFileName().toString(),
+                            uploadVerifier.algorithm(destination), outputStream -> Files.copy(localFile, outputStream));
+                }else{
+                    remoteClient.upload(sourcePath, destination.folderPath());
+                }
+                uploaded++;
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error on SourceLocalTransfer Upload of {} for {}. Message: {}", sourcePath, credentials.hostname(), e.getMessage());
+                if(remoteClient != null){
+                    remoteClientFactory.invalidate(destination, remoteClient);
+                    remoteClient = null;
+                }
+                failed.add(sourcePath);
+                continue;
+            }
+            String contentHash = contentHash(contentHashes, sourcePath);
+            // A gzip upload had its size checked as it went, there is no copy of the original to verify
+            if(uploadedFile != null){
+                verifications.add(new Verification(sourcePath, verify(sourcePath, uploadedFile, contentHash, destination)));
+            }else{
+                recordDelivery(contentHash, destination);
+            }
+        }
+        if(remoteClient != null){
+            remoteClientFactory.release(destination, remoteClient);
+        }
+        if(!pending.isEmpty()){
+            logger.info("Uploaded {} of {} file(s) to {}", uploaded, pending.size(), credentials.hostname());
+        }
+        return failed;
+    }
+
+    private static boolean isGzipped(ServerConfig destination) {
+        return destination.options().compression() == Compression.GZIP;
+    }
+
+    private static String contentHash(Map<Path, Optional<String>> contentHashes, String sourcePath) {
+        return contentHashes.getOrDefault(Path.of(sourcePath), Optional.empty()).orElse(null);
+    }
+
+    private boolean isDelivered(String contentHash, ServerConfig destination) {
+        return contentHash != null && dedupIndex != null && dedupIndex.isDelivered(contentHash, destination);
+    }
+
+    private void recordDelivery(String contentHash, ServerConfig destination) {
+        if(contentHash != null && dedupIndex != null){
+            dedupIndex.recordDelivery(contentHash, destination);
+        }
+    }
+
+    /**
+     * A check of an uploaded file that runs in the background while the batch goes on to the next destinations.
+     */
+    private record Verification(String sourcePath, CompletableFuture<Boolean> check) {
+        private boolean passed() {
+            try {
+                return check.join();
+            } catch (CompletionException | CancellationException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Checks the upload in the background and records it as delivered once it matches. Completes with whether it did.
+     */
+    private CompletableFuture<Boolean> verify(String sourcePath, UploadedFile uploadedFile, String contentHash, ServerConfig destination) {
+        return uploadVerifier.verify(destination, List.of(uploadedFile))
+                .thenApply(result -> {
+                    if(!result.success()){
+                        logger.error("Upload of {} to {} failed verification, it will be retried. Message: {}", sourcePath,
+                                destination.credentials().hostname(), result.message());
+                        return false;
+                    }
+                    recordDelivery(contentHash, destination);
+                    return true;
+                });
+    }
+
+    @Override
+    public void stopTransfer() {
+        running = false;
+        folderMonitor.closeAll();
+        scanner.close();
+        uploadExecutor.shutdown();
+        try {
+            // Let the workers finish the batch they are on before their connections go away
+            if(!uploadExecutor.awaitTermination(60, TimeUnit.SECONDS)){
+                uploadExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            uploadExecutor.shutdownNow();
+        }
+        remoteClientFactory.close();
+        verifyExecutor.shutdown();
     }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package org.simpletransfer.services;
+
+import org.simpletransfer.models.StageStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the files a pipeline stage finishes and the time its workers spend on them.
+ */
+final class StageMeter {
+    private final String stage;
+    private final int workers;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private long lastProcessed;
+    private long lastBusyNanos;
+    private long lastSnapshotNanos = System.nanoTime();
+
+    StageMeter(String stage, int workers) {
+        this.stage = stage;
+        this.workers = workers;
+    }
+
+    void record(int files, long nanos) {
+        processed.add(files);
+        busyNanos.add(nanos);
+    }
+
+    /**
+     * Rates are measured since the previous call.
+     */
+    synchronized StageStats snapshot(int queued, int capacity) {
+        long now = System.nanoTime();
+        long total = processed.sum();
+        long busy = busyNanos.sum();
+        double elapsed = Math.max(1, now - lastSnapshotNanos);
+        StageStats stats = new StageStats(stage, queued, capacity, total,
+                (total - lastProcessed) / (elapsed / 1_000_000_000d),
+                Math.min(1, (busy - lastBusyNanos) / (elapsed * workers)));
+        lastProcessed = total;
+        lastBusyNanos = busy;
+        lastSnapshotNanos = now;
+        return stats;
+    }
+}
@@ -0,0 +1,183 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Compression;
+import org.simpletransfer.models.CredentialType;
+import org.simpletransfer.models.DestinationResult;
+import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.utils.PooledCompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pipes one source file straight into every destination without touching the staging folder.
+ * The source is read once. Each chunk is handed to every destination's bounded queue, so memory per file
+ * is capped at chunkSize * queueCapacity * destinations, and the slowest destination sets the pace.
+ * Every destination is written to at the same time, so ConfigGroups.maxParallelUploads doesn't apply here.
+ */
+public class StreamRelay {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final byte[] ABORTED = new byte[0];
+
+    private final Logger logger;
+    private final RemoteClientFactory remoteClientFactory;
+    private final ExecutorService writerExecutor;
+
+    public StreamRelay(Logger logger, RemoteClientFactory remoteClientFactory, ExecutorService writerExecutor) {
+        this.logger = logger;
+        this.remoteClientFactory = remoteClientFactory;
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * Relays sourcePath, read through sourceClient, to fileName in every destination's folder.
+     * Returns one result per destination. A failed destination doesn't stop the others.
+     */
+    public List<DestinationResult> relay(RemoteClient sourceClient, String sourcePath, String fileName, List<ServerConfig> destinations) {
+        List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+        List<Future<DestinationResult>> writers = new ArrayList<>();
+        for (ServerConfig destination : destinations) {
+            BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            writers.add(writerExecutor.submit(() -> write(queue, destination, fileName)));
+        }
+
+        String sourceFailure = null;
+        try (InputStream inputStream = sourceClient.openRead(sourcePath)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = inputStream.readNBytes(buffer, 0, CHUNK_SIZE)) > 0) {
+                // Chunks are never modified after this point, so all destinations can share one copy
+                byte[] chunk = Arrays.copyOf(buffer, read);
+                for (BlockingQueue<byte[]> queue : queues) {
+                    queue.put(chunk);
+                }
+            }
+        } catch (IOException e) {
+            sourceFailure = e.getMessage();
+            logger.error("[{}] Failed to read {} for relay. Message: {}", sourceClient.getHostName(), sourcePath, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sourceFailure = "Interrupted";
+        }
+
+        byte[] marker = sourceFailure == null ? END_OF_STREAM : ABORTED;
+        for (BlockingQueue<byte[]> queue : queues) {
+            putUninterruptibly(queue, marker);
+        }
+
+        List<DestinationResult> results = new ArrayList<>();
+        for (int i = 0; i < writers.size(); i++) {
+            DestinationResult result;
+            try {
+                result = writers.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = DestinationResult.failure(destinations.get(i), "Interrupted");
+            } catch (ExecutionException e) {
+                result = DestinationResult.failure(destinations.get(i), e.getCause().getMessage());
+            }
+            if(sourceFailure != null && result.success()){
+                result = DestinationResult.failure(destinations.get(i), "Source failed: " + sourceFailure);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private DestinationResult write(BlockingQueue<byte[]> queue, ServerConfig destination, String fileName) {
+        boolean gzipped = destination.credentials().type() != CredentialType.LOCAL
+                && destination.options().compression() == Compression.GZIP;
+        String targetPath = destination.folderPath().concat("/").concat(gzipped ? fileName + StreamUploads.GZIP_SUFFIX : fileName);
+        RemoteClient client = null;
+        boolean aborted = false;
+        boolean markerTaken = false;
+        try {
+            if(destination.credentials().type() != CredentialType.LOCAL){
+                client = remoteClientFactory.borrow(destination);
+            }
+            try (OutputStream outputStream = client == null
+                    ? Files.newOutputStream(Path.of(destination.folderPath()).resolve(fileName))
+                    : gzipped ? PooledCompression.gzip(client.openWrite(targetPath)) : client.openWrite(targetPath)) {
+                byte[] chunk;
+                while ((chunk = queue.take()) != END_OF_STREAM) {
+                    if(chunk == ABORTED){
+                        aborted = true;
+                        break;
+                    }
+                    outputStream.write(chunk);
+                }
+                markerTaken = true;
+            }
+            if(aborted){
+                discardPartial(client, destination, targetPath, fileName);
+                return DestinationResult.failure(destination, "Source aborted");
+            }
+            logger.info("[{}] Relayed '{}'", destination.credentials().hostname(), fileName);
+            if(client != null) remoteClientFactory.release(destination, client);
+            return DestinationResult.success(destination);
+        } catch (IOException | RuntimeException e) {
+            logger.error("[{}] Relay of '{}' failed. Message: {}", destination.credentials().hostname(), fileName, e.getMessage());
+            if(client != null) remoteClientFactory.invalidate(destination, client);
+            if(!markerTaken) drain(queue);
+            return DestinationResult.failure(destination, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if(client != null) remoteClientFactory.invalidate(destination, client);
+            return DestinationResult.failure(destination, "Interrupted");
+        }
+    }
+
+    private void discardPartial(RemoteClient client, ServerConfig destination, String targetPath, String fileName) throws IOException {
+        if(client != null){
+            client.delete(targetPath);
+            remoteClientFactory.release(destination, client);
+        }else{
+            Files.deleteIfExists(Path.of(destination.folderPath()).resolve(fileName));
+        }
+    }
+
+    /**
+     * Keeps taking chunks after a destination failed, so the reader is never blocked by a queue nobody empties.
+     */
+    private void drain(BlockingQueue<byte[]> queue) {
+        try {
+            byte[] chunk;
+            do {
+                chunk = queue.take();
+            } while (chunk != END_OF_STREAM && chunk != ABORTED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void putUninterruptibly(BlockingQueue<byte[]> queue, byte[] marker) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(marker);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
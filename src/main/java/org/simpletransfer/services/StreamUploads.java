@@ -0,0 +1,98 @@
+package org.simpletransfer.services;
+
+import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.models.UploadedFile;
+import org.simpletransfer.utils.FileHasher;
+import org.simpletransfer.utils.PooledCompression;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Uploads written through {@link RemoteClient#openWrite}, for content made up on the way, like bundles and gzip files,
+ * and for files that are hashed as they go up.
+ * Made up content has no local copy to check it against, so with verify set the remote size is compared with the
+ * bytes written.
+ */
+final class StreamUploads {
+    static final String GZIP_SUFFIX = ".gz";
+
+    private StreamUploads() {}
+
+    interface StreamWriter {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Writes fileName into the destination's folder and returns how many bytes it took.
+     */
+    static long upload(RemoteClient remoteClient, ServerConfig destination, String fileName, StreamWriter writer) throws IOException {
+        String remotePath = remotePath(destination, fileName);
+        long written = send(remoteClient, remotePath, writer);
+        if(destination.options().verify()){
+            long remoteSize = remoteClient.remoteSize(remotePath);
+            if(remoteSize != written){
+                throw new IOException("Size mismatch for %s. Local: %d, remote: %d".formatted(fileName, written, remoteSize));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes fileName into the destination's folder, hashing the bytes with algorithm as they are sent.
+     * Nothing is checked here, the result is what {@link UploadVerifier} checks the destination against.
+     */
+    static UploadedFile uploadDigested(RemoteClient remoteClient, ServerConfig destination, String fileName, String algorithm,
+                                       StreamWriter writer) throws IOException {
+        String[] digest = new String[1];
+        long written = send(remoteClient, remotePath(destination, fileName), outputStream -> {
+            FileHasher.DigestingOutputStream digesting;
+            try {
+                digesting = FileHasher.digesting(outputStream, algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            writer.writeTo(digesting);
+            digest[0] = digesting.value();
+        });
+        return new UploadedFile(fileName, written, algorithm, digest[0]);
+    }
+
+    /**
+     * Compresses the content into fileName.gz in the destination's folder, returns the compressed size.
+     */
+    static long uploadGzipped(RemoteClient remoteClient, ServerConfig destination, String fileName, StreamWriter content) throws IOException {
+        return upload(remoteClient, destination, fileName + GZIP_SUFFIX, outputStream -> {
+            try (OutputStream gzip = PooledCompression.gzip(outputStream)) {
+                content.writeTo(gzip);
+            }
+        });
+    }
+
+    private static String remotePath(ServerConfig destination, String fileName) {
+        return destination.folderPath().concat("/").concat(fileName);
+    }
+
+    private static long send(RemoteClient remoteClient, String remotePath, StreamWriter writer) throws IOException {
+        long[] written = new long[1];
+        try (OutputStream outputStream = new FilterOutputStream(remoteClient.openWrite(remotePath)) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                written[0] += length;
+            }
+        }) {
+            writer.writeTo(outputStream);
+        }
+        return written[0];
+    }
+}
@@ -0,0 +1,166 @@
+package org.simpletransfer.services;
+
+import org.simpletransfer.utils.DelegatingSocket;
+import org.simpletransfer.utils.TokenBucket;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Creates sockets whose traffic, both ways, is charged to a set of token buckets, e.g. one for the host and one
+ * for all hosts together. Set on the FTP, FTPS and SSH clients, it covers every byte they move, whichever path
+ * the transfer takes, including the data connections FTP opens per file. FTPS opens its TLS data connections from
+ * its own factory, those are throttled through {@link #wrap} instead.
+ */
+final class ThrottledSocketFactory extends SocketFactory {
+    private static final int MAX_CHUNK = 16 * 1024;
+
+    private final List<TokenBucket> buckets;
+
+    ThrottledSocketFactory(List<TokenBucket> buckets) {
+        this.buckets = List.copyOf(buckets);
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new ThrottledSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connected(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connected(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connected(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return connected(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connected(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+        Socket socket = new ThrottledSocket();
+        try {
+            if(local != null){
+                socket.bind(local);
+            }
+            socket.connect(remote);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Throttles a socket this factory didn't create, e.g. a TLS data connection opened by an SSL socket factory.
+     */
+    Socket wrap(Socket socket) {
+        return new DelegatingSocket(socket) {
+            private InputStream inputStream;
+            private OutputStream outputStream;
+
+            @Override
+            public synchronized InputStream getInputStream() throws IOException {
+                if(inputStream == null){
+                    inputStream = throttle(delegate.getInputStream());
+                }
+                return inputStream;
+            }
+
+            @Override
+            public synchronized OutputStream getOutputStream() throws IOException {
+                if(outputStream == null){
+                    outputStream = throttle(delegate.getOutputStream());
+                }
+                return outputStream;
+            }
+        };
+    }
+
+    private void acquire(long bytes) {
+        for (TokenBucket bucket : buckets) {
+            bucket.acquire(bytes);
+        }
+    }
+
+    private InputStream throttle(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if(read >= 0){
+                    acquire(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                // Charged after the read, there is no telling beforehand how much will arrive
+                int read = super.read(buffer, offset, Math.min(length, MAX_CHUNK));
+                if(read > 0){
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    private OutputStream throttle(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                // In chunks, so one large write doesn't go out as a single burst after a long wait
+                for (int written = 0; written < length; written += MAX_CHUNK) {
+                    int chunk = Math.min(MAX_CHUNK, length - written);
+                    acquire(chunk);
+                    out.write(buffer, offset + written, chunk);
+                }
+            }
+        };
+    }
+
+    private final class ThrottledSocket extends Socket {
+        private InputStream inputStream;
+        private OutputStream outputStream;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if(inputStream == null){
+                inputStream = throttle(super.getInputStream());
+            }
+            return inputStream;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(outputStream == null){
+                outputStream = throttle(super.getOutputStream());
+            }
+            return outputStream;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.DestinationResult;
+import org.simpletransfer.models.RemoteChecksum;
+import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.ServerConfig;
+import org.simpletransfer.models.UploadedFile;
+import org.simpletransfer.utils.FileHasher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Checks that uploaded files arrived intact without downloading them again. The server is asked for a checksum
+ * of each file and it is compared with the hash taken of the bytes as they were sent, so no local file is read
+ * a second time. Servers that can't checksum get a size comparison instead. Uploads don't carry the local mtime
+ * over, so there is no mtime to compare.
+ * <p>
+ * The server decides which algorithm it answers with. Uploads are hashed with the one {@link #algorithm} returns,
+ * SHA-256 until the server has answered with something else once. A file hashed with another algorithm than the
+ * server's is compared by size.
+ * <p>
+ * Verification runs on its own pooled connection on the given executor, so the upload connection is free for the
+ * next file while earlier ones are being checked.
+ */
+public class UploadVerifier {
+    private static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private final Logger logger;
+    private final RemoteClientFactory remoteClientFactory;
+    private final ExecutorService executor;
+    private final Map<Credentials, String> serverAlgorithms = new ConcurrentHashMap<>();
+
+    public UploadVerifier(Logger logger, RemoteClientFactory remoteClientFactory, ExecutorService executor) {
+        this.logger = logger;
+        this.remoteClientFactory = remoteClientFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * The algorithm to hash uploads to the destination with.
+     */
+    public String algorithm(ServerConfig destination) {
+        return serverAlgorithms.getOrDefault(destination.credentials(), DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Verifies files that have been uploaded into the destination folder.
+     * Completes with a failure naming the first file that doesn't match.
+     */
+    public CompletableFuture<DestinationResult> verify(ServerConfig destination, List<UploadedFile> uploadedFiles) {
+        return CompletableFuture.supplyAsync(() -> {
+            RemoteClient remoteClient;
+            try {
+                remoteClient = remoteClientFactory.borrow(destination);
+            } catch (IOException e) {
+                return DestinationResult.failure(destination, "Unable to verify uploads. " + e.getMessage());
+            }
+            try {
+                for (UploadedFile uploadedFile : uploadedFiles) {
+                    String problem = check(remoteClient, destination, uploadedFile);
+                    if(problem != null){
+                        remoteClientFactory.release(destination, remoteClient);
+                        return DestinationResult.failure(destination, problem);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                remoteClientFactory.invalidate(destination, remoteClient);
+                return DestinationResult.failure(destination, "Unable to verify uploads. " + e.getMessage());
+            }
+            remoteClientFactory.release(destination, remoteClient);
+            return DestinationResult.success(destination);
+        }, executor);
+    }
+
+    /**
+     * Returns what is wrong with the uploaded copy, or null when it matches.
+     */
+    private String check(RemoteClient remoteClient, ServerConfig destination, UploadedFile uploadedFile) throws IOException {
+        String fileName = uploadedFile.name();
+        String remotePath = destination.folderPath().concat("/").concat(fileName);
+
+        Optional<RemoteChecksum> remoteChecksum = remoteClient.remoteChecksum(remotePath);
+        if(remoteChecksum.isPresent()){
+            String algorithm = remoteChecksum.get().algorithm();
+            if(algorithm.equalsIgnoreCase(uploadedFile.algorithm())){
+                if(!uploadedFile.digest().equalsIgnoreCase(remoteChecksum.get().value())){
+                    return "%s checksum mismatch for %s. Local: %s, remote: %s"
+                            .formatted(algorithm, fileName, uploadedFile.digest(), remoteChecksum.get().value());
+                }
+                logger.info("[{}] Verified {} by {}", destination.credentials().hostname(), fileName, algorithm);
+                return null;
+            }
+            if(FileHasher.isSupported(algorithm)){
+                serverAlgorithms.put(destination.credentials(), algorithm);
+                logger.info("[{}] Checksums are {}, hashing further uploads with it", destination.credentials().hostname(), algorithm);
+            }
+        }
+
+        long remoteSize = remoteClient.remoteSize(remotePath);
+        if(remoteSize != uploadedFile.size()){
+            return "Size mismatch for %s. Local: %d, remote: %d".formatted(fileName, uploadedFile.size(), remoteSize);
+        }
+        logger.info("[{}] Verified {} by size", destination.credentials().hostname(), fileName);
+        return null;
+    }
+}
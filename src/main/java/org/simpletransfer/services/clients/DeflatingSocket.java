@@ -0,0 +1,28 @@
+package org.simpletransfer.services.clients;
+
+import org.simpletransfer.utils.DelegatingSocket;
+import org.simpletransfer.utils.PooledCompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An FTP data connection in MODE Z: what is written is deflated, what is read is inflated.
+ */
+final class DeflatingSocket extends DelegatingSocket {
+    DeflatingSocket(Socket delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return PooledCompression.inflate(delegate.getInputStream());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return PooledCompression.deflate(delegate.getOutputStream());
+    }
+}
@@ -0,0 +1,46 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.simpletransfer.models.RemoteChecksum;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Server side checksums for the FTP and FTPS clients. Prefers the HASH command, whichever algorithm the server
+ * has selected, then the older X commands, strongest first. Only commands the server lists in FEAT are tried.
+ */
+final class FtpChecksums {
+    private static final Pattern HEX = Pattern.compile("\\b[0-9a-fA-F]{8,128}\\b");
+    private static final String[][] X_COMMANDS = {
+            {"XSHA256", "SHA-256"},
+            {"XSHA1", "SHA-1"},
+            {"XMD5", "MD5"},
+            {"XCRC", "CRC32"}
+    };
+
+    private FtpChecksums(){}
+
+    static Optional<RemoteChecksum> checksum(FTPClient ftpClient, String remotePath) throws IOException {
+        if(ftpClient.hasFeature("HASH") && FTPReply.isPositiveCompletion(ftpClient.sendCommand("HASH", remotePath))){
+            // 213 <algorithm> <start>-<end> <hash> <path>
+            String[] parts = ftpClient.getReplyString().trim().split(" ", 5);
+            if(parts.length >= 4){
+                return Optional.of(new RemoteChecksum(parts[1].toUpperCase(Locale.ROOT), parts[3].toLowerCase(Locale.ROOT)));
+            }
+        }
+        for (String[] command : X_COMMANDS) {
+            if(ftpClient.hasFeature(command[0]) && FTPReply.isPositiveCompletion(ftpClient.sendCommand(command[0], remotePath))){
+                Matcher matcher = HEX.matcher(ftpClient.getReplyString().substring(3));
+                if(matcher.find()){
+                    return Optional.of(new RemoteChecksum(command[1], matcher.group().toLowerCase(Locale.ROOT)));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,58 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.simpletransfer.utils.ListingCache;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Directory listing helpers shared by the FTP and FTPS clients. Uses MLSD/MLST when the server announces them,
+ * since those give exact sizes and timestamps in a fixed format, and falls back to LIST and MDTM otherwise.
+ */
+final class FtpListings {
+    private FtpListings(){}
+
+    /**
+     * Regular files in path.
+     */
+    static List<FTPFile> listFiles(FTPClient ftpClient, String path) throws IOException {
+        FTPFile[] ftpFiles = ftpClient.hasFeature("MLST") ? ftpClient.mlistDir(path) : ftpClient.listFiles(path);
+        return Arrays.stream(ftpFiles).filter(FTPFile::isFile).toList();
+    }
+
+    /**
+     * The directory's modification time in milliseconds, or -1 when the server can't tell us.
+     */
+    static long directoryModified(FTPClient ftpClient, String path) throws IOException {
+        if(ftpClient.hasFeature("MLST")){
+            FTPFile directory = ftpClient.mlistFile(path);
+            return directory != null && directory.getTimestamp() != null ? directory.getTimestamp().getTimeInMillis() : -1;
+        }
+        // Plenty of servers refuse MDTM on directories, that just means we always list
+        Instant modified = ftpClient.mdtmInstant(path);
+        return modified != null ? modified.toEpochMilli() : -1;
+    }
+
+    /**
+     * The file's entry as {@link #listFiles} would give it, empty when it doesn't exist.
+     */
+    static Optional<ListingCache.Entry> stat(FTPClient ftpClient, String path) throws IOException {
+        FTPFile ftpFile;
+        if(ftpClient.hasFeature("MLST")){
+            ftpFile = ftpClient.mlistFile(path);
+        }else{
+            FTPFile[] ftpFiles = ftpClient.listFiles(path);
+            ftpFile = ftpFiles.length == 1 ? ftpFiles[0] : null;
+        }
+        return ftpFile != null && ftpFile.isFile() ? Optional.of(entryOf(ftpFile)) : Optional.empty();
+    }
+
+    static ListingCache.Entry entryOf(FTPFile ftpFile) {
+        return new ListingCache.Entry(ftpFile.getSize(), ftpFile.getTimestamp() != null ? ftpFile.getTimestamp().getTimeInMillis() : 0);
+    }
+}
@@ -1,19 +1,31 @@
 package org.simpletransfer.services.clients;
 
+import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Compression;
 import org.simpletransfer.models.Credentials;
 import org.simpletransfer.models.FileInfo;
 import org.simpletransfer.models.FileType;
+import org.simpletransfer.models.RemoteChecksum;
 import org.simpletransfer.models.RemoteClient;
-import org.simpletransfer.utils.Util;
+import org.simpletransfer.models.TransferOptions;
+import org.simpletransfer.utils.CheckpointStore;
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.StagedFile;
+import org.simpletransfer.utils.TransferJournal;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class FtpRemoteClient implements RemoteClient {
     private final Logger logger;
@@ -22,6 +34,12 @@ public class FtpRemoteClient implements RemoteClient {
     private final List<FileInfo> fileInfos;
     private final BiConsumer<List<String>, String> uploadedFilesConsumer;
     private final List<String> uploadedFiles;
+    private final TransferOptions transferOptions;
+    private final CheckpointStore checkpointStore;
+    private final Supplier<RemoteClient> connectionSupplier;
+    private final ListingCache listingCache;
+    private final DownloadDigests downloadDigests;
+    private final TransferJournal journal;
 
     public FtpRemoteClient(FtpRemoteClient.Builder builder){
         this.logger = builder.logger;
@@ -30,6 +48,12 @@ public class FtpRemoteClient implements RemoteClient {
         this.fileInfos = builder.fileInfos;
         this.uploadedFilesConsumer = builder.uploadedFilesConsumer;
         this.uploadedFiles = new ArrayList<>();
+        this.transferOptions = builder.transferOptions != null ? builder.transferOptions : TransferOptions.defaults();
+        this.checkpointStore = builder.checkpointStore;
+        this.connectionSupplier = builder.connectionSupplier;
+        this.listingCache = builder.listingCache != null ? builder.listingCache : new ListingCache();
+        this.downloadDigests = builder.downloadDigests != null ? builder.downloadDigests : new DownloadDigests();
+        this.journal = builder.journal;
     }
 
     public static FtpRemoteClient.Builder builder(){
@@ -42,6 +66,12 @@ public class FtpRemoteClient implements RemoteClient {
         private List<FileInfo> fileInfos;
         private BiConsumer<List<String>, String> uploadedFilesConsumer;
         private Logger logger;
+        private TransferOptions transferOptions;
+        private CheckpointStore checkpointStore;
+        private Supplier<RemoteClient> connectionSupplier;
+        private ListingCache listingCache;
+        private DownloadDigests downloadDigests;
+        private TransferJournal journal;
 
         public FtpRemoteClient.Builder withCredentials(Credentials credentials){
             this.credentials = credentials;
@@ -68,6 +98,52 @@ public class FtpRemoteClient implements RemoteClient {
             return this;
         }
 
+        public FtpRemoteClient.Builder withTransferOptions(TransferOptions transferOptions){
+            this.transferOptions = transferOptions;
+            return this;
+        }
+
+        /**
+         * Where resume checkpoints are kept, needed when {@link TransferOptions#resume()} is set.
+         */
+        public FtpRemoteClient.Builder withCheckpointStore(CheckpointStore checkpointStore){
+            this.checkpointStore = checkpointStore;
+            return this;
+        }
+
+        /**
+         * Creates the extra connections used by segmented downloads.
+         */
+        public FtpRemoteClient.Builder withConnectionSupplier(Supplier<RemoteClient> connectionSupplier){
+            this.connectionSupplier = connectionSupplier;
+            return this;
+        }
+
+        /**
+         * Remembers earlier listings so download only handles new or changed files. Share one between
+         * clients for the same host so they agree on what has been handled.
+         */
+        public FtpRemoteClient.Builder withListingCache(ListingCache listingCache){
+            this.listingCache = listingCache;
+            return this;
+        }
+
+        /**
+         * Journals each download before the source file is deleted. Without it the file is deleted right away.
+         */
+        public FtpRemoteClient.Builder withJournal(TransferJournal journal){
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * Where the hashes of files downloaded in one stream are left, so they needn't be hashed again.
+         */
+        public FtpRemoteClient.Builder withDownloadDigests(DownloadDigests downloadDigests){
+            this.downloadDigests = downloadDigests;
+            return this;
+        }
+
         public FtpRemoteClient build(){
             return new FtpRemoteClient(this);
         }
@@ -78,6 +154,18 @@ public class FtpRemoteClient implements RemoteClient {
         ftpClient.connect(credentials.hostname(), credentials.port());
         ftpClient.login(credentials.username(), credentials.password());
         ftpClient.enterLocalPassiveMode();
+        // Sessions start in ASCII mode, which rewrites line endings: sizes, checksums and REST offsets
+        // would no longer line up with the file's bytes
+        if(!ftpClient.setFileType(FTP.BINARY_FILE_TYPE)){
+            throw new IOException("%s refused binary mode: %s".formatted(credentials.hostname(), ftpClient.getReplyString()));
+        }
+        if(transferOptions.compression() == Compression.NEGOTIATE){
+            if(FtpStreams.useModeZ(ftpClient)){
+                logger.info("[{}] Transferring in MODE Z", credentials.hostname());
+            }else{
+                logger.info("[{}] MODE Z not supported, transferring uncompressed", credentials.hostname());
+            }
+        }
         if(ftpClient.isConnected()){
             logger.info("Connected to {}", credentials.hostname());
         }else{
@@ -102,23 +190,54 @@ public class FtpRemoteClient implements RemoteClient {
         return ftpClient.isConnected();
     }
 
+    @Override
+    public boolean isAlive() {
+        if(!isConnected()){
+            return false;
+        }
+        try {
+            return ftpClient.sendNoOp();
+        } catch (IOException e) {
+            logger.warn("[{}] NOOP failed. Message: {}", credentials.hostname(), e.getMessage());
+            return false;
+        }
+    }
+
     @SuppressWarnings("LoggingSimilarMessage")
     @Override
     public void upload(String localPath, String remotePath) throws IOException {
         if(isConnected()){
             uploadedFiles.clear();
             File localFile = new File(localPath);
-            if(localFile.isFile()){
+            if(localFile.isFile() && transferOptions.resume()){
+                String target = remotePath.concat("/").concat(localFile.getName());
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), localPath, remotePath);
+                FtpStreams.resumableUpload(ftpClient, checkpointStore, ResumableTransfer.key("upload", credentials, target, localFile.toPath()),
+                        localFile.toPath(), offset -> ResumableTransfer.openLocal(localFile.toPath(), offset), target);
+                uploadedFiles.add(localFile.getName());
+            }else if(localFile.isFile()){
                 try(InputStream localFileStream = new FileInputStream(localPath)){
                     logger.info("[{}] Uploading {} to {}", credentials.hostname(), localPath, remotePath);
-                    ftpClient.storeFile(remotePath.concat("/").concat(localFile.getName()), localFileStream);
+                    if(!ftpClient.storeFile(remotePath.concat("/").concat(localFile.getName()), localFileStream)){
+                        throw new IOException("Failed to upload " + localFile.getName() + ". Reply: " + ftpClient.getReplyString());
+                    }
                     uploadedFiles.add(localFile.getName());
                 }
             }else if(localFile.isDirectory()){
                 for (File file : Objects.requireNonNull(localFile.listFiles())) {
+                    if(transferOptions.resume()){
+                        String target = remotePath.concat("/").concat(file.getName());
+                        logger.info("[{}] Uploading {} to {}", credentials.hostname(), file.getName(), remotePath);
+                        FtpStreams.resumableUpload(ftpClient, checkpointStore, ResumableTransfer.key("upload", credentials, target, file.toPath()),
+                                file.toPath(), offset -> ResumableTransfer.openLocal(file.toPath(), offset), target);
+                        uploadedFiles.add(file.getName());
+                        continue;
+                    }
                     try(InputStream inputStream = new FileInputStream(file)){
                         logger.info("[{}] Uploading {} to {}", credentials.hostname(), localPath, remotePath);
-                        ftpClient.storeFile(remotePath.concat("/").concat(file.getName()), inputStream);
+                        if(!ftpClient.storeFile(remotePath.concat("/").concat(file.getName()), inputStream)){
+                            throw new IOException("Failed to upload " + file.getName() + ". Reply: " + ftpClient.getReplyString());
+                        }
                         uploadedFiles.add(file.getName());
                     }
                 }
@@ -128,25 +247,149 @@ public class FtpRemoteClient implements RemoteClient {
     }
 
     @Override
-    public void download(String localPath, String remotePath) throws IOException {
+    public void uploadStaged(List<StagedFile> stagedFiles, String remotePath) throws IOException {
+        if(!isConnected()){
+            throw new IOException("Not connected to " + credentials.hostname());
+        }
+        for (StagedFile stagedFile : stagedFiles) {
+            if(transferOptions.resume()){
+                String target = remotePath.concat("/").concat(stagedFile.name());
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), stagedFile.name(), remotePath);
+                FtpStreams.resumableUpload(ftpClient, checkpointStore, ResumableTransfer.key("upload", credentials, target, stagedFile.path()),
+                        stagedFile.path(), stagedFile::newInputStream, target);
+                continue;
+            }
+            try(InputStream inputStream = stagedFile.newInputStream()){
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), stagedFile.name(), remotePath);
+                if(!ftpClient.storeFile(remotePath.concat("/").concat(stagedFile.name()), inputStream)){
+                    throw new IOException("Failed to upload " + stagedFile.name() + ". Reply: " + ftpClient.getReplyString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void download(String localPath, String remotePath, Consumer<String> downloadedFile) throws IOException {
         if(isConnected()){
+            String cacheKey = ListingCache.key(credentials, remotePath);
+            long directoryModified = FtpListings.directoryModified(ftpClient, remotePath);
+            if(listingCache.isUnchanged(cacheKey, directoryModified)){
+                logger.debug("Nothing changed in {} on {}", remotePath, credentials.hostname());
+                return;
+            }
+
             int downloadCount = 0;
-            for(FTPFile ftpFile : ftpClient.listFiles(remotePath)){
-                OutputStream fos = new FileOutputStream(localPath.concat("\\").concat(ftpFile.getName()));
-                if(ftpClient.retrieveFile(remotePath.concat("/").concat(ftpFile.getName()), fos)){
-                    downloadCount++;
-                    fos.close();
-                    delete(remotePath.concat("/").concat(ftpFile.getName()));
-                }else{
-                    fos.close();
-                    Util.deleteFile(localPath + "/" + ftpFile.getName().trim());
-                    logger.error("Failed to download {}", ftpFile.getName());
+            SourceCleanup cleanup = new SourceCleanup(logger, journal, credentials.hostname(), this::deleteFile);
+            try {
+                for(FTPFile ftpFile : listingCache.changed(cacheKey, directoryModified, FtpListings.listFiles(ftpClient, remotePath),
+                        FTPFile::getName, FtpListings::entryOf)){
+                    String source = remotePath.concat("/").concat(ftpFile.getName());
+                    boolean downloaded;
+                    if(transferOptions.isSegmented(ftpFile.getSize()) && connectionSupplier != null){
+                        downloaded = downloadSegmented(source, ftpFile.getSize(), Path.of(localPath.concat("\\").concat(ftpFile.getName())));
+                        if(downloaded){
+                            cleanup.downloaded(source, ftpFile.getName(), FtpListings.entryOf(ftpFile), this::delete);
+                        }
+                    }else if(transferOptions.resume()){
+                        downloaded = downloadResumable(ftpFile, localPath, remotePath, cleanup);
+                    }else{
+                        downloaded = downloadWhole(source, Path.of(localPath.concat("\\").concat(ftpFile.getName())));
+                        if(downloaded){
+                            cleanup.downloaded(source, ftpFile.getName(), FtpListings.entryOf(ftpFile), this::delete);
+                        }
+                    }
+                    if(downloaded){
+                        downloadCount++;
+                        listingCache.markHandled(cacheKey, ftpFile.getName(), FtpListings.entryOf(ftpFile));
+                        downloadedFile.accept(ftpFile.getName());
+                    }
                 }
-                logger.info("Downloaded {} files from FTP {}", downloadCount, credentials.hostname());
+            } finally {
+                cleanup.finish();
             }
+            logger.info("Downloaded {} files from FTP {}", downloadCount, credentials.hostname());
         }
     }
 
+    private boolean downloadSegmented(String source, long size, Path localFile) {
+        try {
+            SegmentedDownload.download(logger, connectionSupplier, source, size, localFile, transferOptions.segments());
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to download {} in segments. Message: {}", source, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Downloads into a part file that is removed when the download fails.
+     * Rethrows when the connection itself is gone, there is no point in trying the remaining files.
+     */
+    private boolean downloadWhole(String source, Path localFile) throws IOException {
+        try {
+            downloadDigests.record(localFile, PartFileDownload.download(localFile, () -> FtpStreams.openRead(ftpClient, source)));
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to download {}. Message: {}", source, e.getMessage());
+            if(!isAlive()){
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the partial local file when the download fails, the next attempt continues from the last checkpoint.
+     * Rethrows when the connection itself is gone, there is no point in trying the remaining files.
+     */
+    private boolean downloadResumable(FTPFile ftpFile, String localPath, String remotePath, SourceCleanup cleanup) throws IOException {
+        String source = remotePath.concat("/").concat(ftpFile.getName());
+        Path localFile = Path.of(localPath.concat("\\").concat(ftpFile.getName()));
+        try {
+            downloadDigests.record(localFile, FtpStreams.resumableDownload(ftpClient, checkpointStore,
+                    ResumableTransfer.key("download", credentials, source, localFile), ftpFile.getSize(), localFile, source));
+        } catch (IOException e) {
+            logger.error("Failed to download {}, it will be resumed. Message: {}", ftpFile.getName(), e.getMessage());
+            if(!isAlive()){
+                throw e;
+            }
+            return false;
+        }
+        cleanup.downloaded(source, ftpFile.getName(), FtpListings.entryOf(ftpFile), this::delete);
+        return true;
+    }
+
+    @Override
+    public InputStream openRead(String remotePath) throws IOException {
+        return FtpStreams.openRead(ftpClient, remotePath);
+    }
+
+    @Override
+    public InputStream openRead(String remotePath, long offset) throws IOException {
+        ftpClient.setRestartOffset(offset);
+        return FtpStreams.openRead(ftpClient, remotePath);
+    }
+
+    @Override
+    public OutputStream openWrite(String remotePath) throws IOException {
+        return FtpStreams.openWrite(ftpClient, remotePath);
+    }
+
+    @Override
+    public Optional<RemoteChecksum> remoteChecksum(String remotePath) throws IOException {
+        return FtpChecksums.checksum(ftpClient, remotePath);
+    }
+
+    @Override
+    public long remoteSize(String remotePath) throws IOException {
+        return FtpStreams.remoteSize(ftpClient, remotePath);
+    }
+
+    @Override
+    public Optional<ListingCache.Entry> stat(String remotePath) throws IOException {
+        return FtpListings.stat(ftpClient, remotePath);
+    }
+
     @Override
     public void createDirectory(String directoryPath) throws IOException {
         if(isConnected()){
@@ -182,6 +425,12 @@ public class FtpRemoteClient implements RemoteClient {
         }
     }
 
+    private void deleteFile(String path) throws IOException {
+        if(!ftpClient.deleteFile(path)){
+            throw new IOException("Failed to delete " + path + ". Reply: " + ftpClient.getReplyString().trim());
+        }
+    }
+
     @Override
     public String getHostName() {
         return credentials.hostname();
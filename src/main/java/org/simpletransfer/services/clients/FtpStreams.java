@@ -0,0 +1,136 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.simpletransfer.utils.CheckpointStore;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Stream access shared by the FTP and FTPS clients. The data connection of a retrieve or store stays open
+ * until the returned stream is closed, which is also when the server's final reply is read.
+ * Until then the control connection can't be used for anything else.
+ */
+final class FtpStreams {
+    private FtpStreams(){}
+
+    /**
+     * Switches the data connections to MODE Z when the server supports it. Returns false, leaving them as they are,
+     * when the server refuses or the client wasn't created with MODE Z support.
+     */
+    static boolean useModeZ(FTPClient ftpClient) throws IOException {
+        return switch (ftpClient) {
+            case WrappingFTPSClient wrappingClient -> wrappingClient.useModeZ();
+            case WrappingFTPClient wrappingClient -> wrappingClient.useModeZ();
+            default -> false;
+        };
+    }
+
+    static InputStream openRead(FTPClient ftpClient, String remotePath) throws IOException {
+        binary(ftpClient, remotePath);
+        InputStream inputStream = ftpClient.retrieveFileStream(remotePath);
+        if(inputStream == null){
+            throw new IOException("Unable to open " + remotePath + " for reading. Reply: " + ftpClient.getReplyString());
+        }
+        return new FilterInputStream(inputStream) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                super.close();
+                if(!ftpClient.completePendingCommand()){
+                    throw new IOException("Failed to read " + remotePath + ". Reply: " + ftpClient.getReplyString());
+                }
+            }
+        };
+    }
+
+    static OutputStream openWrite(FTPClient ftpClient, String remotePath) throws IOException {
+        binary(ftpClient, remotePath);
+        return wrapWrite(ftpClient, remotePath, ftpClient.storeFileStream(remotePath));
+    }
+
+    static OutputStream openAppend(FTPClient ftpClient, String remotePath) throws IOException {
+        binary(ftpClient, remotePath);
+        return wrapWrite(ftpClient, remotePath, ftpClient.appendFileStream(remotePath));
+    }
+
+    /**
+     * Downloads with REST so an interrupted download continues where it stopped. See {@link ResumableTransfer}.
+     */
+    static String resumableDownload(FTPClient ftpClient, CheckpointStore store, String key, long remoteSize,
+                                    Path localFile, String remotePath) throws IOException {
+        return ResumableTransfer.download(store, key, remoteSize, localFile, offset -> {
+            ftpClient.setRestartOffset(offset);
+            return openRead(ftpClient, remotePath);
+        });
+    }
+
+    /**
+     * Uploads with APPE so an interrupted upload continues from the size the server already has.
+     * APPE is used rather than REST+STOR because more servers support it.
+     */
+    static void resumableUpload(FTPClient ftpClient, CheckpointStore store, String key, Path localFile,
+                                ResumableTransfer.RemoteOpener<InputStream> local, String remotePath) throws IOException {
+        ResumableTransfer.upload(store, key, localFile, remoteSize(ftpClient, remotePath), local,
+                offset -> offset > 0 ? openAppend(ftpClient, remotePath) : openWrite(ftpClient, remotePath));
+    }
+
+    /**
+     * SIZE of the remote file, or -1 when it doesn't exist or the server doesn't support SIZE.
+     */
+    static long remoteSize(FTPClient ftpClient, String remotePath) throws IOException {
+        String size = ftpClient.getSize(remotePath);
+        if(size == null){
+            return -1;
+        }
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Streams must carry the bytes as they are. In ASCII mode line endings inside bundles and gzip files get
+     * rewritten, and so do the bytes a relay reads to gzip on the way, which then no longer match the source.
+     * connect switches to binary already, this keeps it so whatever ran on the connection since.
+     */
+    private static void binary(FTPClient ftpClient, String remotePath) throws IOException {
+        if(!ftpClient.setFileType(FTP.BINARY_FILE_TYPE)){
+            throw new IOException("Unable to switch to binary mode for " + remotePath + ". Reply: " + ftpClient.getReplyString());
+        }
+    }
+
+    private static OutputStream wrapWrite(FTPClient ftpClient, String remotePath, OutputStream outputStream) throws IOException {
+        if(outputStream == null){
+            throw new IOException("Unable to open " + remotePath + " for writing. Reply: " + ftpClient.getReplyString());
+        }
+        return new FilterOutputStream(outputStream) {
+            private boolean closed;
+
+            // FilterOutputStream writes one byte at a time by default
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                super.close();
+                if(!ftpClient.completePendingCommand()){
+                    throw new IOException("Failed to write " + remotePath + ". Reply: " + ftpClient.getReplyString());
+                }
+            }
+        };
+    }
+}
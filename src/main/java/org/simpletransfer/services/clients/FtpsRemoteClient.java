@@ -1,19 +1,31 @@
 package org.simpletransfer.services.clients;
 
+import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.ftp.FTPSClient;
 import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Compression;
 import org.simpletransfer.models.Credentials;
 import org.simpletransfer.models.FileInfo;
 import org.simpletransfer.models.FileType;
+import org.simpletransfer.models.RemoteChecksum;
 import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.TransferOptions;
+import org.simpletransfer.utils.CheckpointStore;
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.StagedFile;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class FtpsRemoteClient implements RemoteClient {
     private final Logger logger;
@@ -22,6 +34,11 @@ public class FtpsRemoteClient implements RemoteClient {
     private final List<FileInfo> fileInfos;
     private final BiConsumer<List<String>, String> uploadedFilesConsumer;
     private final List<String> uploadedFiles;
+    private final TransferOptions transferOptions;
+    private final CheckpointStore checkpointStore;
+    private final Supplier<RemoteClient> connectionSupplier;
+    private final ListingCache listingCache;
+    private final DownloadDigests downloadDigests;
 
     public FtpsRemoteClient(Builder builder){
         this.logger = builder.logger;
@@ -30,6 +47,11 @@ public class FtpsRemoteClient implements RemoteClient {
         this.fileInfos = builder.fileInfos;
         this.uploadedFilesConsumer = builder.uploadedFilesConsumer;
         this.uploadedFiles = new ArrayList<>();
+        this.transferOptions = builder.transferOptions != null ? builder.transferOptions : TransferOptions.defaults();
+        this.checkpointStore = builder.checkpointStore;
+        this.connectionSupplier = builder.connectionSupplier;
+        this.listingCache = builder.listingCache != null ? builder.listingCache : new ListingCache();
+        this.downloadDigests = builder.downloadDigests != null ? builder.downloadDigests : new DownloadDigests();
     }
 
     public static Builder builder(){
@@ -42,6 +64,11 @@ public class FtpsRemoteClient implements RemoteClient {
         private List<FileInfo> fileInfos;
         private BiConsumer<List<String>, String> uploadedFilesConsumer;
         private Logger logger;
+        private TransferOptions transferOptions;
+        private CheckpointStore checkpointStore;
+        private Supplier<RemoteClient> connectionSupplier;
+        private ListingCache listingCache;
+        private DownloadDigests downloadDigests;
 
         public Builder withCredentials(Credentials credentials){
             this.credentials = credentials;
@@ -68,6 +95,44 @@ public class FtpsRemoteClient implements RemoteClient {
             return this;
         }
 
+        public Builder withTransferOptions(TransferOptions transferOptions){
+            this.transferOptions = transferOptions;
+            return this;
+        }
+
+        /**
+         * Where resume checkpoints are kept, needed when {@link TransferOptions#resume()} is set.
+         */
+        public Builder withCheckpointStore(CheckpointStore checkpointStore){
+            this.checkpointStore = checkpointStore;
+            return this;
+        }
+
+        /**
+         * Creates the extra connections used by segmented downloads.
+         */
+        public Builder withConnectionSupplier(Supplier<RemoteClient> connectionSupplier){
+            this.connectionSupplier = connectionSupplier;
+            return this;
+        }
+
+        /**
+         * Remembers earlier listings so download only handles new or changed files. Share one between
+         * clients for the same host so they agree on what has been handled.
+         */
+        public Builder withListingCache(ListingCache listingCache){
+            this.listingCache = listingCache;
+            return this;
+        }
+
+        /**
+         * Where the hashes of files downloaded in one stream are left, so they needn't be hashed again.
+         */
+        public Builder withDownloadDigests(DownloadDigests downloadDigests){
+            this.downloadDigests = downloadDigests;
+            return this;
+        }
+
         public FtpsRemoteClient build(){
             return new FtpsRemoteClient(this);
         }
@@ -94,6 +159,18 @@ public class FtpsRemoteClient implements RemoteClient {
         ftpsClient.execPBSZ(0);
         ftpsClient.execPROT("P");
         ftpsClient.enterLocalPassiveMode();
+        // Sessions start in ASCII mode, which rewrites line endings: sizes, checksums and REST offsets
+        // would no longer line up with the file's bytes
+        if(!ftpsClient.setFileType(FTP.BINARY_FILE_TYPE)){
+            throw new IOException("%s refused binary mode: %s".formatted(credentials.hostname(), ftpsClient.getReplyString()));
+        }
+        if(transferOptions.compression() == Compression.NEGOTIATE){
+            if(FtpStreams.useModeZ(ftpsClient)){
+                logger.info("[{}] Transferring in MODE Z", credentials.hostname());
+            }else{
+                logger.info("[{}] MODE Z not supported, transferring uncompressed", credentials.hostname());
+            }
+        }
     }
 
     @Override
@@ -108,48 +185,154 @@ public class FtpsRemoteClient implements RemoteClient {
         return ftpsClient.isConnected();
     }
 
+    @Override
+    public boolean isAlive() {
+        if(!isConnected()){
+            return false;
+        }
+        try {
+            return ftpsClient.sendNoOp();
+        } catch (IOException e) {
+            logger.warn("[{}] NOOP failed. Message: {}", credentials.hostname(), e.getMessage());
+            return false;
+        }
+    }
+
     @SuppressWarnings("LoggingSimilarMessage")
     @Override
     public void upload(String localPath, String remotePath) throws IOException {
         if(isConnected()){
             uploadedFiles.clear();
             File localFile = new File(localPath);
-            if(localFile.isFile()){
-                try(InputStream localFileStream = new FileInputStream(localPath)){
-                    ftpsClient.storeFile(remotePath, localFileStream);
-                    logger.info("[{}] Uploading {} to {}", credentials.hostname(), localPath, remotePath);
-                    uploadedFiles.add(localFile.getName());
-                }
-            }else if(localFile.isDirectory()){
-                for(File file : Objects.requireNonNull(localFile.listFiles())){
+            List<File> files = localFile.isDirectory() ? List.of(Objects.requireNonNull(localFile.listFiles()))
+                    : localFile.isFile() ? List.of(localFile) : List.of();
+            for(File file : files){
+                String target = remotePath.concat("/").concat(file.getName());
+                if(transferOptions.resume()){
+                    FtpStreams.resumableUpload(ftpsClient, checkpointStore, ResumableTransfer.key("upload", credentials, target, file.toPath()),
+                            file.toPath(), offset -> ResumableTransfer.openLocal(file.toPath(), offset), target);
+                }else{
                     try(InputStream localFileStream = new FileInputStream(file)){
-                        ftpsClient.storeFile(remotePath, localFileStream);
-                        logger.info("[{}] Uploading {} to {}", credentials.hostname(), file.getName(), remotePath);
-                        uploadedFiles.add(localFile.getName());
+                        if(!ftpsClient.storeFile(target, localFileStream)){
+                            throw new IOException("Failed to upload " + file.getName() + ". Reply: " + ftpsClient.getReplyString());
+                        }
                     }
                 }
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), file.getName(), remotePath);
+                uploadedFiles.add(file.getName());
             }
             uploadedFilesConsumer.accept(uploadedFiles, credentials.hostname());
         }
     }
 
     @Override
-    public void download(String localPath, String remotePath) throws IOException {
+    public void uploadStaged(List<StagedFile> stagedFiles, String remotePath) throws IOException {
+        if(!isConnected()){
+            throw new IOException("Not connected to " + credentials.hostname());
+        }
+        for (StagedFile stagedFile : stagedFiles) {
+            if(transferOptions.resume()){
+                String target = remotePath.concat("/").concat(stagedFile.name());
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), stagedFile.name(), remotePath);
+                FtpStreams.resumableUpload(ftpsClient, checkpointStore, ResumableTransfer.key("upload", credentials, target, stagedFile.path()),
+                        stagedFile.path(), stagedFile::newInputStream, target);
+                continue;
+            }
+            try(InputStream inputStream = stagedFile.newInputStream()){
+                logger.info("[{}] Uploading {} to {}", credentials.hostname(), stagedFile.name(), remotePath);
+                if(!ftpsClient.storeFile(remotePath.concat("/").concat(stagedFile.name()), inputStream)){
+                    throw new IOException("Failed to upload " + stagedFile.name() + ". Reply: " + ftpsClient.getReplyString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void download(String localPath, String remotePath, Consumer<String> downloadedFile) throws IOException {
         int downloadCount = 0;
         if(isConnected()){
-            for (FTPFile ftpFile : ftpsClient.listFiles(remotePath)) {
-                if(ftpFile.isFile()){
-                    logger.info("File Link: {}", ftpFile.getLink());
-                    try(OutputStream outputStream = new FileOutputStream(localPath.concat("\\").concat(ftpFile.getName()))){
-                        ftpsClient.retrieveFile(ftpFile.getLink(), outputStream);
-                        downloadCount++;
+            String cacheKey = ListingCache.key(credentials, remotePath);
+            long directoryModified = FtpListings.directoryModified(ftpsClient, remotePath);
+            if(listingCache.isUnchanged(cacheKey, directoryModified)){
+                logger.debug("Nothing changed in {} on {}", remotePath, credentials.hostname());
+                return;
+            }
+
+            for (FTPFile ftpFile : listingCache.changed(cacheKey, directoryModified, FtpListings.listFiles(ftpsClient, remotePath),
+                    FTPFile::getName, FtpListings::entryOf)) {
+                String source = remotePath.concat("/").concat(ftpFile.getName());
+                Path localFile = Path.of(localPath.concat("\\").concat(ftpFile.getName()));
+                boolean downloaded = false;
+                if(transferOptions.isSegmented(ftpFile.getSize()) && connectionSupplier != null){
+                    try {
+                        SegmentedDownload.download(logger, connectionSupplier, source, ftpFile.getSize(), localFile, transferOptions.segments());
+                        downloaded = true;
+                    } catch (IOException e) {
+                        logger.error("Failed to download {} in segments. Message: {}", source, e.getMessage());
+                    }
+                }else if(transferOptions.resume()){
+                    try {
+                        downloadDigests.record(localFile, FtpStreams.resumableDownload(ftpsClient, checkpointStore,
+                                ResumableTransfer.key("download", credentials, source, localFile), ftpFile.getSize(), localFile, source));
+                        downloaded = true;
+                    } catch (IOException e) {
+                        logger.error("Failed to download {}, it will be resumed. Message: {}", ftpFile.getName(), e.getMessage());
+                        if(!isAlive()){
+                            throw e;
+                        }
+                    }
+                }else{
+                    try {
+                        downloadDigests.record(localFile, PartFileDownload.download(localFile, () -> FtpStreams.openRead(ftpsClient, source)));
+                        downloaded = true;
+                    } catch (IOException e) {
+                        logger.error("Failed to download {}. Message: {}", ftpFile.getName(), e.getMessage());
+                        if(!isAlive()){
+                            throw e;
+                        }
                     }
                 }
+                if(downloaded){
+                    downloadCount++;
+                    listingCache.markHandled(cacheKey, ftpFile.getName(), FtpListings.entryOf(ftpFile));
+                    downloadedFile.accept(ftpFile.getName());
+                }
             }
             logger.info("Downloaded {} files from {}", downloadCount, credentials.hostname());
         }
     }
 
+    @Override
+    public InputStream openRead(String remotePath) throws IOException {
+        return FtpStreams.openRead(ftpsClient, remotePath);
+    }
+
+    @Override
+    public InputStream openRead(String remotePath, long offset) throws IOException {
+        ftpsClient.setRestartOffset(offset);
+        return FtpStreams.openRead(ftpsClient, remotePath);
+    }
+
+    @Override
+    public OutputStream openWrite(String remotePath) throws IOException {
+        return FtpStreams.openWrite(ftpsClient, remotePath);
+    }
+
+    @Override
+    public Optional<RemoteChecksum> remoteChecksum(String remotePath) throws IOException {
+        return FtpChecksums.checksum(ftpsClient, remotePath);
+    }
+
+    @Override
+    public long remoteSize(String remotePath) throws IOException {
+        return FtpStreams.remoteSize(ftpsClient, remotePath);
+    }
+
+    @Override
+    public Optional<ListingCache.Entry> stat(String remotePath) throws IOException {
+        return FtpListings.stat(ftpsClient, remotePath);
+    }
+
     @Override
     public void createDirectory(String directoryPath) throws IOException {
         if(isConnected()){
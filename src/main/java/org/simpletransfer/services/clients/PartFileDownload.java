@@ -0,0 +1,60 @@
+package org.simpletransfer.services.clients;
+
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.FileHasher;
+import org.simpletransfer.utils.StagedFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Downloads that are neither resumed nor segmented. Like those, they go to a {@link StagedFile#PART_SUFFIX} file
+ * that only gets the local file's name once the remote stream has been read to its end and closed without an error,
+ * so a download cut off halfway is never taken for a staged file. The part file is removed when the download fails.
+ * The stream is hashed as it is read, for {@link DownloadDigests}.
+ */
+final class PartFileDownload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @FunctionalInterface
+    interface RemoteOpener {
+        InputStream open() throws IOException;
+    }
+
+    private PartFileDownload(){}
+
+    /**
+     * Returns the {@link DownloadDigests#ALGORITHM} hash of the downloaded file.
+     */
+    static String download(Path localFile, RemoteOpener remote) throws IOException {
+        Path partFile = StagedFile.partPath(localFile);
+        try {
+            String digest;
+            try (FileHasher.DigestingInputStream inputStream = FileHasher.digesting(remote.open(), DownloadDigests.ALGORITHM);
+                 OutputStream outputStream = Files.newOutputStream(partFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+                digest = inputStream.value();
+            }
+            Files.move(partFile, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(partFile);
+            } catch (IOException cleanupFailure) {
+                e.addSuppressed(cleanupFailure);
+            }
+            throw e;
+        }
+    }
+}
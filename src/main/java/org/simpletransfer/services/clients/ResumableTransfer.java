@@ -0,0 +1,186 @@
+package org.simpletransfer.services.clients;
+
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.utils.CheckpointStore;
+import org.simpletransfer.utils.CheckpointStore.Checkpoint;
+import org.simpletransfer.utils.StagedFile;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * Byte-offset restart shared by all clients. The protocol specific part, opening a remote stream at an offset
+ * (FTP REST/APPE, SFTP offset reads and writes), is passed in.
+ * <p>
+ * A checkpoint is saved every {@link #CHECKPOINT_INTERVAL} bytes and when a transfer fails. Before resuming, the
+ * local file's first offset bytes are hashed and compared with the checkpoint, so a partial file that was changed
+ * or replaced in the meantime starts over from zero instead of being stitched onto.
+ * Downloads go to a {@link StagedFile#PART_SUFFIX} file next to the local file, which only gets its final name
+ * once it is complete.
+ */
+final class ResumableTransfer {
+    private static final long CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @FunctionalInterface
+    interface RemoteOpener<T> {
+        T open(long offset) throws IOException;
+    }
+
+    private ResumableTransfer(){}
+
+    /**
+     * Downloads into localFile, continuing a previous partial download of the same remote file when possible.
+     * The partial file is kept when this fails. Returns the SHA-256 of the whole file, which the checkpoints
+     * hash as they go anyway.
+     */
+    static String download(CheckpointStore store, String key, long remoteSize, Path localFile,
+                         RemoteOpener<InputStream> remote) throws IOException {
+        Path partFile = StagedFile.partPath(localFile);
+        MessageDigest digest = sha256();
+        long offset = 0;
+        Optional<Checkpoint> checkpoint = store.load(key);
+        if(checkpoint.isPresent() && checkpoint.get().totalSize() == remoteSize && Files.exists(partFile)
+                && Files.size(partFile) >= checkpoint.get().offset()
+                && hashPrefix(partFile, checkpoint.get().offset(), digest).equals(checkpoint.get().partialHash())){
+            offset = checkpoint.get().offset();
+        }else{
+            digest.reset();
+        }
+
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+        }
+
+        try (FileOutputStream outputStream = new FileOutputStream(partFile.toFile(), true);
+             InputStream inputStream = remote.open(offset)) {
+            copy(inputStream, outputStream, offset, digest, store, key, remoteSize,
+                    () -> outputStream.getChannel().force(false));
+        }
+        Files.move(partFile, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        store.clear(key);
+        return snapshot(digest);
+    }
+
+    /**
+     * Uploads localFile, continuing from what the server already has when a checkpoint shows the earlier attempt
+     * was for the same local content. remoteSize is the current size of the remote file, or -1 if it doesn't exist.
+     */
+    static void upload(CheckpointStore store, String key, Path localFile, long remoteSize,
+                       RemoteOpener<InputStream> local, RemoteOpener<OutputStream> remote) throws IOException {
+        long localSize = Files.size(localFile);
+        MessageDigest digest = sha256();
+        long offset = 0;
+        Optional<Checkpoint> checkpoint = store.load(key);
+        if(checkpoint.isPresent() && checkpoint.get().totalSize() == localSize
+                && remoteSize > 0 && remoteSize <= checkpoint.get().offset()
+                && hashPrefix(localFile, checkpoint.get().offset(), sha256()).equals(checkpoint.get().partialHash())){
+            // The server may hold less than we sent before the failure, it is the authority on where to continue
+            offset = remoteSize;
+            hashPrefix(localFile, offset, digest);
+        }
+
+        try (InputStream inputStream = local.open(offset);
+             OutputStream outputStream = remote.open(offset)) {
+            copy(inputStream, outputStream, offset, digest, store, key, localSize, outputStream::flush);
+        }
+        store.clear(key);
+    }
+
+    /**
+     * Opens a local file for reading at offset.
+     */
+    static InputStream openLocal(Path file, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return Channels.newInputStream(channel.position(offset));
+    }
+
+    /**
+     * Identifies one transfer across retries and restarts.
+     */
+    static String key(String direction, Credentials credentials, String remotePath, Path localFile) {
+        return String.join("|", direction, credentials.hostname() + ":" + credentials.port(), credentials.username(),
+                remotePath, localFile.toAbsolutePath().toString());
+    }
+
+    @FunctionalInterface
+    private interface Sync {
+        void run() throws IOException;
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream, long offset, MessageDigest digest,
+                             CheckpointStore store, String key, long totalSize, Sync sync) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = offset;
+        long lastCheckpoint = offset;
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                position += read;
+                if(position - lastCheckpoint >= CHECKPOINT_INTERVAL){
+                    sync.run();
+                    store.save(key, new Checkpoint(position, snapshot(digest), totalSize));
+                    lastCheckpoint = position;
+                }
+            }
+        } catch (IOException e) {
+            try {
+                sync.run();
+                store.save(key, new Checkpoint(position, snapshot(digest), totalSize));
+            } catch (IOException syncFailure) {
+                e.addSuppressed(syncFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Feeds the first length bytes of file into digest and returns the hash so far, leaving digest usable.
+     */
+    private static String hashPrefix(Path file, long length, MessageDigest digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if(read < 0) break;
+                buffer.flip();
+                digest.update(buffer);
+                remaining -= read;
+            }
+        }
+        return snapshot(digest);
+    }
+
+    private static String snapshot(MessageDigest digest) {
+        try {
+            return HexFormat.of().formatHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.utils.StagedFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Downloads one large file as several byte ranges at once, each over its own connection.
+ * The local file is preallocated to the full size and every range is written straight into its place
+ * with positional FileChannel writes, so no ordering or reassembly is needed. The ranges go into a
+ * {@link StagedFile#PART_SUFFIX} file that is renamed to the local file once every range has arrived, and removed
+ * when one fails.
+ */
+final class SegmentedDownload {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private SegmentedDownload(){}
+
+    static void download(Logger logger, Supplier<RemoteClient> connectionSupplier, String remotePath, long size,
+                         Path localFile, int segments) throws IOException {
+        Path partFile = StagedFile.partPath(localFile);
+        try {
+            downloadInto(connectionSupplier, remotePath, size, partFile, segments);
+            Files.move(partFile, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+        logger.info("Downloaded {} in {} segments", remotePath, segments);
+    }
+
+    private static void downloadInto(Supplier<RemoteClient> connectionSupplier, String remotePath, long size,
+                                     Path localFile, int segments) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(localFile.toFile(), "rw")) {
+            file.setLength(size);
+        }
+
+        long segmentSize = (size + segments - 1) / segments;
+        try (FileChannel channel = FileChannel.open(localFile, StandardOpenOption.WRITE);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long start = 0; start < size; start += segmentSize) {
+                long offset = start;
+                long length = Math.min(segmentSize, size - start);
+                futures.add(executor.submit(() -> {
+                    readSegment(connectionSupplier, remotePath, offset, length, offset + length == size, channel);
+                    return null;
+                }));
+            }
+
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted while downloading " + remotePath);
+                } catch (ExecutionException e) {
+                    if(failure == null){
+                        failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                    }
+                }
+            }
+            if(failure != null){
+                throw failure;
+            }
+            channel.force(false);
+        }
+    }
+
+    private static void readSegment(Supplier<RemoteClient> connectionSupplier, String remotePath, long offset, long length,
+                                    boolean lastSegment, FileChannel channel) throws IOException {
+        RemoteClient connection = connectionSupplier.get();
+        InputStream inputStream = null;
+        try {
+            connection.connect();
+            inputStream = connection.openRead(remotePath, offset);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                int read = inputStream.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining));
+                if(read < 0){
+                    throw new IOException("Unexpected end of " + remotePath + " at " + position);
+                }
+                buffer.position(0).limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                remaining -= read;
+            }
+            if(lastSegment){
+                inputStream.close();
+                inputStream = null;
+            }
+        } finally {
+            // Segments stop before the end of the file, so their transfer can't finish cleanly.
+            // Dropping the connection is what ends them.
+            connection.disconnect();
+            if(inputStream != null){
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.simpletransfer.services.clients;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Credentials;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Extra SFTP streams to one host, so the files of a single upload or download call can move in parallel.
+ * A lane is either another SFTP channel on the main SSH session or, for servers that limit channels,
+ * a separate SSH session with its own channel. Lanes stay open until {@link #close()}.
+ */
+class SftpLanes implements AutoCloseable {
+    private final Logger logger;
+    private final Credentials credentials;
+    private final SSHClient mainSession;
+    private final Supplier<SSHClient> sessionSupplier;
+    private final boolean separateSessions;
+
+    private final List<Lane> lanes = new ArrayList<>();
+
+    private record Lane(SSHClient ownSession, SFTPClient sftpClient) {
+        boolean isOpen() {
+            return sftpClient.getSFTPEngine().getSubsystem().isOpen()
+                    && (ownSession == null || ownSession.isConnected());
+        }
+    }
+
+    @FunctionalInterface
+    interface LaneAction<T> {
+        void apply(SFTPClient sftpClient, T item) throws IOException;
+    }
+
+    SftpLanes(Logger logger, Credentials credentials, SSHClient mainSession, Supplier<SSHClient> sessionSupplier, boolean separateSessions) {
+        this.logger = logger;
+        this.credentials = credentials;
+        this.mainSession = mainSession;
+        this.sessionSupplier = sessionSupplier;
+        this.separateSessions = separateSessions;
+    }
+
+    /**
+     * Spreads the items over up to count lanes and waits for all of them.
+     * Every item is attempted even when some fail; the first failure is rethrown at the end.
+     */
+    <T> void forEach(Collection<T> items, int count, LaneAction<T> action) throws IOException {
+        List<Lane> activeLanes = open(Math.min(count, items.size()));
+        Queue<T> pending = new ConcurrentLinkedQueue<>(items);
+        List<Future<IOException>> futures = new ArrayList<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Lane lane : activeLanes) {
+                futures.add(executor.submit(() -> drain(lane, pending, action)));
+            }
+        }
+
+        IOException firstFailure = null;
+        for (Future<IOException> future : futures) {
+            try {
+                IOException failure = future.get();
+                if(firstFailure == null){
+                    firstFailure = failure;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while transferring with " + credentials.hostname());
+            } catch (ExecutionException e) {
+                if(firstFailure == null){
+                    firstFailure = new IOException(e.getCause());
+                }
+            }
+        }
+        if(firstFailure != null){
+            throw firstFailure;
+        }
+    }
+
+    private <T> IOException drain(Lane lane, Queue<T> pending, LaneAction<T> action) {
+        IOException firstFailure = null;
+        T item;
+        while ((item = pending.poll()) != null) {
+            try {
+                action.apply(lane.sftpClient(), item);
+            } catch (SFTPException e) {
+                logger.error("[{}] Transfer of {} failed. Message: {}", credentials.hostname(), item, e.getMessage());
+                if(firstFailure == null) firstFailure = e;
+            } catch (IOException e) {
+                // The lane itself broke, leave the rest of the queue to the other lanes
+                logger.error("[{}] SFTP lane failed on {}. Message: {}", credentials.hostname(), item, e.getMessage());
+                if(firstFailure == null) firstFailure = e;
+                break;
+            }
+        }
+        return firstFailure;
+    }
+
+    private synchronized List<Lane> open(int count) throws IOException {
+        lanes.removeIf(lane -> {
+            if(!lane.isOpen()){
+                closeLane(lane);
+                return true;
+            }
+            return false;
+        });
+        while (lanes.size() < count) {
+            lanes.add(separateSessions ? openSession() : new Lane(null, mainSession.newSFTPClient()));
+        }
+        return new ArrayList<>(lanes.subList(0, count));
+    }
+
+    private Lane openSession() throws IOException {
+        SSHClient session = sessionSupplier.get();
+        try {
+            session.addHostKeyVerifier(new PromiscuousVerifier());
+            session.connect(credentials.hostname(), credentials.port());
+            session.authPassword(credentials.username(), credentials.password());
+            return new Lane(session, session.newSFTPClient());
+        } catch (IOException e) {
+            if(session.isConnected()){
+                session.disconnect();
+            }
+            throw e;
+        }
+    }
+
+    private void closeLane(Lane lane) {
+        try {
+            lane.sftpClient().close();
+            if(lane.ownSession() != null && lane.ownSession().isConnected()){
+                lane.ownSession().disconnect();
+            }
+        } catch (IOException e) {
+            logger.warn("[{}] Error while closing SFTP lane. Message: {}", credentials.hostname(), e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        lanes.forEach(this::closeLane);
+        lanes.clear();
+    }
+}
@@ -1,29 +1,73 @@
 package org.simpletransfer.services.clients;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteFile;
 import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
 import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import org.apache.logging.log4j.Logger;
 import org.simpletransfer.models.Credentials;
 import org.simpletransfer.models.FileInfo;
 import org.simpletransfer.models.FileType;
+import org.simpletransfer.models.RemoteChecksum;
 import org.simpletransfer.models.RemoteClient;
+import org.simpletransfer.models.TransferOptions;
+import org.simpletransfer.utils.CheckpointStore;
+import org.simpletransfer.utils.DownloadDigests;
+import org.simpletransfer.utils.FileHasher;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.StagedFile;
+import org.simpletransfer.utils.TransferJournal;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class SftpRemoteClient implements RemoteClient {
+    private static final int MAX_UNCONFIRMED_READS = 16;
+    private static final int MAX_UNCONFIRMED_WRITES = 16;
+    private static final String CHECK_FILE_ALGORITHMS = "sha256,sha1,md5";
+    private static final long CHECK_FILE_TIMEOUT_MINUTES = 5;
+
     private final Logger logger;
     private final Credentials credentials;
     private final SSHClient sshClient;
     private final List<FileInfo> fileInfos;
     private final BiConsumer<List<String>, String> uploadedFilesConsumer;
     private final List<String> uploadedFiles;
+    private final TransferOptions transferOptions;
+    private final CheckpointStore checkpointStore;
+    private final Supplier<RemoteClient> connectionSupplier;
+    private final ListingCache listingCache;
+    private final DownloadDigests downloadDigests;
+    private final TransferJournal journal;
+    private final SftpLanes lanes;
+    private final Object sftpClientLock = new Object();
+    private SFTPClient sftpClient;
+    private volatile boolean checkFileSupported = true;
 
     public SftpRemoteClient(Builder builder){
         this.logger = builder.logger;
@@ -32,6 +76,15 @@ public class SftpRemoteClient implements RemoteClient {
         this.fileInfos = builder.fileInfos;
         this.uploadedFilesConsumer = builder.uploadedFilesConsumer;
         this.uploadedFiles = new ArrayList<>();
+        this.transferOptions = builder.transferOptions != null ? builder.transferOptions : TransferOptions.defaults();
+        this.checkpointStore = builder.checkpointStore;
+        this.connectionSupplier = builder.connectionSupplier;
+        this.listingCache = builder.listingCache != null ? builder.listingCache : new ListingCache();
+        this.downloadDigests = builder.downloadDigests != null ? builder.downloadDigests : new DownloadDigests();
+        this.journal = builder.journal;
+        this.lanes = new SftpLanes(logger, credentials, sshClient,
+                builder.sshClientSupplier != null ? builder.sshClientSupplier : SSHClient::new,
+                transferOptions.separateSessions());
     }
 
     public static Builder builder(){
@@ -44,7 +97,13 @@ public class SftpRemoteClient implements RemoteClient {
         private SSHClient sshClient;
         private List<FileInfo> fileInfos;
         private BiConsumer<List<String>, String> uploadedFilesConsumer;
-
+        private TransferOptions transferOptions;
+        private Supplier<SSHClient> sshClientSupplier;
+        private CheckpointStore checkpointStore;
+        private Supplier<RemoteClient> connectionSupplier;
+        private ListingCache listingCache;
+        private DownloadDigests downloadDigests;
+        private TransferJournal journal;
 
         public Builder(Logger logger, Credentials credentials, SSHClient sshClient, List<FileInfo> fileInfos, BiConsumer<List<String>, String> uploadedFilesConsumer) {
             this.logger = logger;
@@ -81,6 +140,60 @@ public class SftpRemoteClient implements RemoteClient {
             return this;
         }
 
+        public Builder withTransferOptions(TransferOptions transferOptions){
+            this.transferOptions = transferOptions;
+            return this;
+        }
+
+        /**
+         * Used to open extra sessions when {@link TransferOptions#separateSessions()} is set.
+         */
+        public Builder withSSHClientSupplier(Supplier<SSHClient> sshClientSupplier){
+            this.sshClientSupplier = sshClientSupplier;
+            return this;
+        }
+
+        /**
+         * Where resume checkpoints are kept, needed when {@link TransferOptions#resume()} is set.
+         */
+        public Builder withCheckpointStore(CheckpointStore checkpointStore){
+            this.checkpointStore = checkpointStore;
+            return this;
+        }
+
+        /**
+         * Creates the extra connections used by segmented downloads.
+         */
+        public Builder withConnectionSupplier(Supplier<RemoteClient> connectionSupplier){
+            this.connectionSupplier = connectionSupplier;
+            return this;
+        }
+
+        /**
+         * Remembers earlier listings so download only handles new or changed files. Share one between
+         * clients for the same host so they agree on what has been handled.
+         */
+        public Builder withListingCache(ListingCache listingCache){
+            this.listingCache = listingCache;
+            return this;
+        }
+
+        /**
+         * Journals each download before the source file is deleted. Without it the file is deleted right away.
+         */
+        public Builder withJournal(TransferJournal journal){
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * Where the hashes of files downloaded in one stream are left, so they needn't be hashed again.
+         */
+        public Builder withDownloadDigests(DownloadDigests downloadDigests){
+            this.downloadDigests = downloadDigests;
+            return this;
+        }
+
         public SftpRemoteClient build(){
             return new SftpRemoteClient(this);
         }
@@ -100,6 +213,8 @@ public class SftpRemoteClient implements RemoteClient {
 
     @Override
     public void disconnect() throws IOException {
+        lanes.close();
+        closeSftpClient();
         if(sshClient.isConnected()){
             sshClient.disconnect();
             if(!isConnected()){
@@ -113,53 +228,277 @@ public class SftpRemoteClient implements RemoteClient {
         return sshClient.isConnected();
     }
 
+    @Override
+    public boolean isAlive() {
+        if(!isConnected() || !sshClient.isAuthenticated()){
+            return false;
+        }
+        try {
+            withSftp(sftpClient -> sftpClient.canonicalize("."));
+            return true;
+        } catch (IOException e) {
+            logger.warn("[{}] Keepalive failed. Message: {}", credentials.hostname(), e.getMessage());
+            return false;
+        }
+    }
+
     @SuppressWarnings("LoggingSimilarMessage")
     @Override
     public void upload(String localPath, String remotePath) throws IOException {
         if(isConnected()){
-            logger.info("Starting download from {}", credentials.hostname());
-            try(SFTPClient sftpClient = sshClient.newSFTPClient()){
-                uploadedFiles.clear();
-                File localFile = new File(localPath);
-                if(localFile.isFile()){
-                    sftpClient.put(localFile.getAbsolutePath(), remotePath.concat("/").concat(localFile.getName()));
-                    logger.info("[{}] Uploaded '{}'", credentials.hostname(), localFile.getName());
-                    uploadedFiles.add(localFile.getName());
-                }else if(localFile.isDirectory()){
-                    for (File file : Objects.requireNonNull(localFile.listFiles())) {
-                        sftpClient.put(file.getAbsolutePath(), remotePath.concat("/").concat(file.getName()));
+            logger.info("Starting upload to {}", credentials.hostname());
+            uploadedFiles.clear();
+            File localFile = new File(localPath);
+            if(localFile.isFile()){
+                runSftp(sftpClient -> put(sftpClient, localFile, remotePath));
+                logger.info("[{}] Uploaded '{}'", credentials.hostname(), localFile.getName());
+                uploadedFiles.add(localFile.getName());
+            }else if(localFile.isDirectory()){
+                List<File> files = List.of(Objects.requireNonNull(localFile.listFiles()));
+                if(transferOptions.parallelism() > 1 && files.size() > 1){
+                    List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+                    try {
+                        lanes.forEach(files, transferOptions.parallelism(), (laneClient, file) -> {
+                            put(laneClient, file, remotePath);
+                            logger.info("[{}] Uploaded '{}'", credentials.hostname(), file.getName());
+                            uploaded.add(file.getName());
+                        });
+                    } finally {
+                        uploadedFiles.addAll(uploaded);
+                    }
+                }else{
+                    for (File file : files) {
+                        runSftp(sftpClient -> put(sftpClient, file, remotePath));
                         logger.info("[{}] Uploaded '{}'", credentials.hostname(), file.getName());
-                        uploadedFiles.add(localFile.getName());
+                        uploadedFiles.add(file.getName());
                     }
                 }
-                if(!uploadedFiles.isEmpty())
-                    uploadedFilesConsumer.accept(uploadedFiles, credentials.hostname());
             }
-            logger.info("Downloaded finished from {}", credentials.hostname());
+            if(!uploadedFiles.isEmpty())
+                uploadedFilesConsumer.accept(uploadedFiles, credentials.hostname());
+            logger.info("Upload finished to {}", credentials.hostname());
         }else{
             logger.info("Not connected to {}", credentials.hostname());
         }
     }
 
     @Override
-    public void download(String localPath, String remotePath) throws IOException {
+    public void uploadStaged(List<StagedFile> stagedFiles, String remotePath) throws IOException {
+        if(!isConnected()){
+            throw new IOException("Not connected to " + credentials.hostname());
+        }
+        if(transferOptions.parallelism() > 1 && stagedFiles.size() > 1){
+            lanes.forEach(stagedFiles, transferOptions.parallelism(), (laneClient, stagedFile) -> put(laneClient, stagedFile, remotePath));
+        }else{
+            for (StagedFile stagedFile : stagedFiles) {
+                runSftp(sftpClient -> put(sftpClient, stagedFile, remotePath));
+            }
+        }
+    }
+
+    private void put(SFTPClient sftpClient, StagedFile stagedFile, String remotePath) throws IOException {
+        String target = remotePath.concat("/").concat(stagedFile.name());
+        if(transferOptions.resume()){
+            ResumableTransfer.upload(checkpointStore, ResumableTransfer.key("upload", credentials, target, stagedFile.path()),
+                    stagedFile.path(), remoteSize(sftpClient, target), stagedFile::newInputStream,
+                    offset -> openWrite(sftpClient, target, offset));
+        }else{
+            try(OutputStream outputStream = openWrite(sftpClient, target, 0)){
+                stagedFile.writeTo(outputStream);
+            }
+        }
+        logger.info("[{}] Uploaded '{}'", credentials.hostname(), stagedFile.name());
+    }
+
+    private void put(SFTPClient sftpClient, File file, String remotePath) throws IOException {
+        String target = remotePath.concat("/").concat(file.getName());
+        if(transferOptions.resume()){
+            ResumableTransfer.upload(checkpointStore, ResumableTransfer.key("upload", credentials, target, file.toPath()),
+                    file.toPath(), remoteSize(sftpClient, target), offset -> ResumableTransfer.openLocal(file.toPath(), offset),
+                    offset -> openWrite(sftpClient, target, offset));
+        }else{
+            sftpClient.put(file.getAbsolutePath(), target);
+        }
+    }
+
+    /**
+     * Downloads into a part file next to the local file, renamed once complete. With resume on, the part file is kept
+     * when this fails and the next attempt reads on from its end, otherwise it is removed. Files that arrive in one
+     * stream leave their hash in the download digests, segments arrive in pieces and are hashed later if needed.
+     */
+    private void get(SFTPClient sftpClient, RemoteResourceInfo resourceInfo, String localPath) throws IOException {
+        long size = resourceInfo.getAttributes().getSize();
+        if(resourceInfo.isRegularFile() && transferOptions.isSegmented(size) && connectionSupplier != null){
+            Path localFile = Path.of(localPath).resolve(resourceInfo.getName());
+            SegmentedDownload.download(logger, connectionSupplier, resourceInfo.getPath(), size, localFile, transferOptions.segments());
+        }else if(transferOptions.resume()){
+            Path localFile = Path.of(localPath).resolve(resourceInfo.getName());
+            downloadDigests.record(localFile, ResumableTransfer.download(checkpointStore,
+                    ResumableTransfer.key("download", credentials, resourceInfo.getPath(), localFile),
+                    resourceInfo.getAttributes().getSize(), localFile, offset -> openRead(sftpClient, resourceInfo.getPath(), offset)));
+        }else{
+            Path localFile = Path.of(localPath).resolve(resourceInfo.getName());
+            downloadDigests.record(localFile, PartFileDownload.download(localFile, () -> openRead(sftpClient, resourceInfo.getPath(), 0)));
+        }
+    }
+
+    private long remoteSize(SFTPClient sftpClient, String path) throws IOException {
+        FileAttributes attributes = sftpClient.statExistence(path);
+        return attributes == null ? -1 : attributes.getSize();
+    }
+
+    @Override
+    public void download(String localPath, String remotePath, Consumer<String> downloadedFile) throws IOException {
         if(isConnected()){
-            try(SFTPClient sftpClient = sshClient.newSFTPClient()){
-                for (RemoteResourceInfo resourceInfo : sftpClient.ls(remotePath)) {
-                    sftpClient.get(resourceInfo.getPath(), localPath);
-                    sftpClient.rm(resourceInfo.getPath());
-                    logger.info("Downloaded {} from {}", resourceInfo.getName(), credentials.hostname());
+            String cacheKey = ListingCache.key(credentials, remotePath);
+            long directoryModified = withSftp(sftpClient -> sftpClient.stat(remotePath)).getMtime() * 1000;
+            if(listingCache.isUnchanged(cacheKey, directoryModified)){
+                logger.debug("Nothing changed in {} on {}", remotePath, credentials.hostname());
+                return;
+            }
+
+            List<RemoteResourceInfo> resources = listingCache.changed(cacheKey, directoryModified,
+                    withSftp(sftpClient -> sftpClient.ls(remotePath, RemoteResourceInfo::isRegularFile)),
+                    RemoteResourceInfo::getName, SftpRemoteClient::entryOf);
+            SourceCleanup cleanup = new SourceCleanup(logger, journal, credentials.hostname(), this::delete);
+            try {
+                if(transferOptions.parallelism() > 1 && resources.size() > 1){
+                    lanes.forEach(resources, transferOptions.parallelism(), (laneClient, resourceInfo) -> {
+                        get(laneClient, resourceInfo, localPath);
+                        cleanup.downloaded(resourceInfo.getPath(), resourceInfo.getName(), entryOf(resourceInfo), laneClient::rm);
+                        listingCache.markHandled(cacheKey, resourceInfo.getName(), entryOf(resourceInfo));
+                        logger.info("Downloaded {} from {}", resourceInfo.getName(), credentials.hostname());
+                        downloadedFile.accept(resourceInfo.getName());
+                    });
+                }else{
+                    for (RemoteResourceInfo resourceInfo : resources) {
+                        runSftp(sftpClient -> get(sftpClient, resourceInfo, localPath));
+                        cleanup.downloaded(resourceInfo.getPath(), resourceInfo.getName(), entryOf(resourceInfo));
+                        listingCache.markHandled(cacheKey, resourceInfo.getName(), entryOf(resourceInfo));
+                        logger.info("Downloaded {} from {}", resourceInfo.getName(), credentials.hostname());
+                        downloadedFile.accept(resourceInfo.getName());
+                    }
+                }
+            } finally {
+                cleanup.finish();
+            }
+        }
+    }
+
+    private static ListingCache.Entry entryOf(RemoteResourceInfo resourceInfo) {
+        return new ListingCache.Entry(resourceInfo.getAttributes().getSize(), resourceInfo.getAttributes().getMtime() * 1000);
+    }
+
+    @Override
+    public InputStream openRead(String remotePath) throws IOException {
+        return withSftp(sftpClient -> openRead(sftpClient, remotePath, 0));
+    }
+
+    @Override
+    public InputStream openRead(String remotePath, long offset) throws IOException {
+        return withSftp(sftpClient -> openRead(sftpClient, remotePath, offset));
+    }
+
+    @Override
+    public OutputStream openWrite(String remotePath) throws IOException {
+        return withSftp(sftpClient -> openWrite(sftpClient, remotePath, 0));
+    }
+
+    private InputStream openRead(SFTPClient sftpClient, String remotePath, long offset) throws IOException {
+        RemoteFile remoteFile = sftpClient.open(remotePath, EnumSet.of(OpenMode.READ));
+        return new FilterInputStream(remoteFile.new ReadAheadRemoteFileInputStream(MAX_UNCONFIRMED_READS, offset)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    remoteFile.close();
                 }
             }
+        };
+    }
+
+    /**
+     * Opens for writing at offset. Offset 0 truncates, any other offset keeps what is already there.
+     */
+    private OutputStream openWrite(SFTPClient sftpClient, String remotePath, long offset) throws IOException {
+        RemoteFile remoteFile = sftpClient.open(remotePath, offset == 0
+                ? EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC)
+                : EnumSet.of(OpenMode.WRITE, OpenMode.CREAT));
+        return new FilterOutputStream(remoteFile.new RemoteFileOutputStream(offset, MAX_UNCONFIRMED_WRITES)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    remoteFile.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Uses the check-file-name extension. Servers without it (OpenSSH among them) answer with a status,
+     * after which this client stops asking.
+     */
+    @Override
+    public Optional<RemoteChecksum> remoteChecksum(String remotePath) throws IOException {
+        if(!checkFileSupported){
+            return Optional.empty();
         }
+        return withSftp(sftpClient -> {
+            SFTPEngine engine = sftpClient.getSFTPEngine();
+            Request request = engine.newExtendedRequest("check-file-name")
+                    .putString(remotePath)
+                    .putString(CHECK_FILE_ALGORITHMS)
+                    .putUInt64(0)
+                    .putUInt64(0)
+                    .putUInt32(0);
+            Response response = engine.request(request).retrieve(CHECK_FILE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            if(response.getType() == PacketType.STATUS){
+                Response.StatusCode statusCode = response.readStatusCode();
+                if(statusCode == Response.StatusCode.OP_UNSUPPORTED){
+                    checkFileSupported = false;
+                }
+                logger.info("[{}] check-file not available for {}: {}", credentials.hostname(), remotePath, statusCode);
+                return Optional.empty();
+            }
+            response.ensurePacketTypeIs(PacketType.EXTENDED_REPLY);
+            response.readString(); // "check-file"
+            String algorithm = response.readString();
+            byte[] hash = new byte[response.available()];
+            response.readRawBytes(hash);
+            return Optional.of(new RemoteChecksum(switch (algorithm) {
+                case "sha256" -> "SHA-256";
+                case "sha1" -> "SHA-1";
+                case "md5" -> "MD5";
+                default -> algorithm.toUpperCase(Locale.ROOT);
+            }, FileHasher.toHex(hash)));
+        });
+    }
+
+    @Override
+    public long remoteSize(String remotePath) throws IOException {
+        return withSftp(sftpClient -> remoteSize(sftpClient, remotePath));
+    }
+
+    @Override
+    public Optional<ListingCache.Entry> stat(String remotePath) throws IOException {
+        FileAttributes attributes = withSftp(sftpClient -> sftpClient.statExistence(remotePath));
+        return attributes == null || attributes.getType() != FileMode.Type.REGULAR
+                ? Optional.empty()
+                : Optional.of(new ListingCache.Entry(attributes.getSize(), attributes.getMtime() * 1000));
     }
 
     @Override
     public void createDirectory(String directoryPath) throws IOException {
         if(isConnected()){
-            try(SFTPClient sftpClient = sshClient.newSFTPClient()){
-                sftpClient.mkdir(directoryPath);
-            }
+            runSftp(sftpClient -> sftpClient.mkdir(directoryPath));
         }
     }
 
@@ -167,13 +506,11 @@ public class SftpRemoteClient implements RemoteClient {
     public List<FileInfo> listContents(String path) throws IOException {
         if(isConnected()){
             fileInfos.clear();
-            try(SFTPClient sftpClient = sshClient.newSFTPClient()){
-                for (RemoteResourceInfo resourceInfo : sftpClient.ls(path)) {
-                    if(resourceInfo.isRegularFile()){
-                        fileInfos.add(new FileInfo(resourceInfo.getName(), resourceInfo.getPath(), FileType.FILE));
-                    }else if(resourceInfo.isDirectory()){
-                        fileInfos.add(new FileInfo(resourceInfo.getName(), resourceInfo.getPath(), FileType.DIRECTORY));
-                    }
+            for (RemoteResourceInfo resourceInfo : withSftp(sftpClient -> sftpClient.ls(path))) {
+                if(resourceInfo.isRegularFile()){
+                    fileInfos.add(new FileInfo(resourceInfo.getName(), resourceInfo.getPath(), FileType.FILE));
+                }else if(resourceInfo.isDirectory()){
+                    fileInfos.add(new FileInfo(resourceInfo.getName(), resourceInfo.getPath(), FileType.DIRECTORY));
                 }
             }
         }else{
@@ -185,8 +522,90 @@ public class SftpRemoteClient implements RemoteClient {
     @Override
     public void delete(String path) throws IOException {
         if(isConnected()){
-            try(SFTPClient sftpClient = sshClient.newSFTPClient()){
+            withSftp(sftpClient -> {
                 sftpClient.rm(path);
+                return null;
+            }, false);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SftpOperation<T> {
+        T apply(SFTPClient sftpClient) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface SftpAction {
+        void apply(SFTPClient sftpClient) throws IOException;
+    }
+
+    private void runSftp(SftpAction action) throws IOException {
+        withSftp(sftpClient -> {
+            action.apply(sftpClient);
+            return null;
+        });
+    }
+
+    private <T> T withSftp(SftpOperation<T> operation) throws IOException {
+        return withSftp(operation, true);
+    }
+
+    /**
+     * Runs an operation on the session's SFTP channel. If the channel itself broke underneath us while the
+     * SSH connection is still up, it is opened again and, when retry is set, the operation is run once more.
+     * Anything else (server errors like no such file, local file errors, timeouts) is thrown as it is.
+     * Operations that can't safely run twice, like deletes, pass retry false.
+     */
+    private <T> T withSftp(SftpOperation<T> operation, boolean retry) throws IOException {
+        SFTPClient sftpClient = sftpClient();
+        try {
+            return operation.apply(sftpClient);
+        } catch (SFTPException e) {
+            throw e;
+        } catch (IOException e) {
+            if(sftpClient.getSFTPEngine().getSubsystem().isOpen()){
+                throw e;
+            }
+            resetSftpClient(sftpClient);
+            if(!retry || !isConnected()){
+                throw e;
+            }
+            logger.warn("[{}] SFTP channel failed, reopening. Message: {}", credentials.hostname(), e.getMessage());
+            return operation.apply(sftpClient());
+        }
+    }
+
+    /**
+     * The SFTP subsystem channel is opened once per connection and shared by every call.
+     * SFTPEngine matches replies to requests by id, so concurrent requests on it are safe.
+     */
+    private SFTPClient sftpClient() throws IOException {
+        synchronized (sftpClientLock) {
+            if(sftpClient == null || !sftpClient.getSFTPEngine().getSubsystem().isOpen()){
+                closeSftpClient();
+                sftpClient = sshClient.newSFTPClient();
+            }
+            return sftpClient;
+        }
+    }
+
+    private void resetSftpClient(SFTPClient broken) {
+        synchronized (sftpClientLock) {
+            if(sftpClient == broken){
+                closeSftpClient();
+            }
+        }
+    }
+
+    private void closeSftpClient() {
+        synchronized (sftpClientLock) {
+            if(sftpClient != null){
+                try {
+                    sftpClient.close();
+                } catch (IOException e) {
+                    logger.warn("[{}] Error while closing SFTP channel. Message: {}", credentials.hostname(), e.getMessage());
+                }
+                sftpClient = null;
             }
         }
     }
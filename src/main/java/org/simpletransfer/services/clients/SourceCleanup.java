@@ -0,0 +1,82 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.utils.ListingCache;
+import org.simpletransfer.utils.TransferJournal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes downloaded files from the source. Without a journal each file is deleted straight after its download, as
+ * before. With one, the download is journaled first and the deletes wait for {@link #finish()}, so a single journal
+ * sync covers every file of the listing instead of one sync per file. A crash in between leaves the downloads in the
+ * journal and the source files are deleted on the next run.
+ */
+final class SourceCleanup {
+    interface Deleter {
+        void delete(String remotePath) throws IOException;
+    }
+
+    private record Downloaded(String remotePath, String fileName) {}
+
+    private final Logger logger;
+    private final TransferJournal journal;
+    private final String source;
+    private final Deleter deleter;
+    private final List<Downloaded> pending = new ArrayList<>();
+
+    SourceCleanup(Logger logger, TransferJournal journal, String source, Deleter deleter) {
+        this.logger = logger;
+        this.journal = journal;
+        this.source = source;
+        this.deleter = deleter;
+    }
+
+    /**
+     * Called once remotePath has been downloaded completely. Safe to call from several download lanes at once.
+     */
+    void downloaded(String remotePath, String fileName, ListingCache.Entry entry) throws IOException {
+        downloaded(remotePath, fileName, entry, deleter);
+    }
+
+    /**
+     * Like {@link #downloaded(String, String, ListingCache.Entry)}, deleting with deleteNow when there is no journal,
+     * e.g. on the connection of the lane that downloaded the file. entry is the file's size and mtime as listed, a
+     * delete left for the next run only goes ahead if the file still matches it.
+     */
+    void downloaded(String remotePath, String fileName, ListingCache.Entry entry, Deleter deleteNow) throws IOException {
+        if(journal == null){
+            deleteNow.delete(remotePath);
+            return;
+        }
+        journal.downloaded(source, fileName, entry.size(), entry.modified());
+        synchronized (pending) {
+            pending.add(new Downloaded(remotePath, fileName));
+        }
+    }
+
+    /**
+     * Deletes the files downloaded since the last call, once their downloads are on disk in the journal.
+     */
+    void finish() {
+        List<Downloaded> downloaded;
+        synchronized (pending) {
+            if(pending.isEmpty()){
+                return;
+            }
+            downloaded = List.copyOf(pending);
+            pending.clear();
+        }
+        journal.sync();
+        for (Downloaded file : downloaded) {
+            try {
+                deleter.delete(file.remotePath());
+                journal.sourceDeleted(source, file.fileName());
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to delete {} from {}, it will be retried. Message: {}", file.remotePath(), source, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * An FTPClient that can run its data connections in MODE Z on pooled Deflaters and Inflaters, instead of the
+ * fresh ones FTPClient's own MODE Z support creates for every file.
+ */
+public class WrappingFTPClient extends FTPClient {
+    private volatile boolean modeZ;
+
+    /**
+     * Asks the server for MODE Z, returns whether it agreed. Lasts until the connection is closed.
+     */
+    public boolean useModeZ() throws IOException {
+        modeZ = FTPReply.isPositiveCompletion(sendCommand("MODE", "Z"));
+        return modeZ;
+    }
+
+    @Override
+    protected void _connectAction_() throws IOException {
+        // A new session starts in stream mode again
+        modeZ = false;
+        super._connectAction_();
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        Socket socket = super._openDataConnection_(command, arg);
+        return socket != null && modeZ ? new DeflatingSocket(socket) : socket;
+    }
+}
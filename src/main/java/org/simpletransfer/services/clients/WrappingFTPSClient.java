@@ -0,0 +1,69 @@
+package org.simpletransfer.services.clients;
+
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.ftp.FTPSSocketFactory;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.function.UnaryOperator;
+
+/**
+ * An FTPSClient that passes every data connection through a wrapper before using it.
+ * <p>
+ * Once PROT P is in effect FTPSClient opens data connections from its own SSL socket factory, so a socket factory set
+ * by the caller only ever sees the control connection. The wrapper is the way to reach the data connections too.
+ * The caller's socket factory is also kept for the control connection after a disconnect, which resets it.
+ * <p>
+ * FTPSClient doesn't apply MODE Z to its data connections at all, {@link #useModeZ} does it here, on top of the
+ * wrapper so the wrapper sees the compressed bytes.
+ */
+public class WrappingFTPSClient extends FTPSClient {
+    private volatile UnaryOperator<Socket> dataSocketWrapper = UnaryOperator.identity();
+    private SocketFactory controlSocketFactory;
+    private volatile boolean modeZ;
+
+    public WrappingFTPSClient(boolean isImplicit) {
+        super(isImplicit);
+    }
+
+    public void setDataSocketWrapper(UnaryOperator<Socket> dataSocketWrapper) {
+        this.dataSocketWrapper = dataSocketWrapper;
+    }
+
+    /**
+     * Asks the server for MODE Z, returns whether it agreed. Lasts until the connection is closed.
+     */
+    public boolean useModeZ() throws IOException {
+        modeZ = FTPReply.isPositiveCompletion(sendCommand("MODE", "Z"));
+        return modeZ;
+    }
+
+    @Override
+    protected void _connectAction_() throws IOException {
+        // A new session starts in stream mode again
+        modeZ = false;
+        super._connectAction_();
+    }
+
+    @Override
+    public void setSocketFactory(SocketFactory factory) {
+        if(factory == null){
+            factory = controlSocketFactory;
+        }else if(!(factory instanceof FTPSSocketFactory)){
+            controlSocketFactory = factory;
+        }
+        super.setSocketFactory(factory);
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        Socket socket = super._openDataConnection_(command, arg);
+        if(socket == null){
+            return null;
+        }
+        Socket wrapped = dataSocketWrapper.apply(socket);
+        return modeZ ? new DeflatingSocket(wrapped) : wrapped;
+    }
+}
@@ -0,0 +1,91 @@
+package org.simpletransfer.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.Properties;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Small on-disk records of how far an interrupted transfer got, so a retry or a restart can pick up from there.
+ * One file per in-flight transfer, replaced atomically on every save.
+ */
+public class CheckpointStore {
+    private static final Logger logger = LogManager.getLogger();
+    public static final String DEFAULT_DIRECTORY = "Staging\\CHECKPOINT\\";
+
+    /**
+     * @param offset      bytes known to be transferred
+     * @param partialHash SHA-256 of the first offset bytes of the local file
+     * @param totalSize   size of the file being transferred, a different size means it changed and can't be resumed
+     */
+    public record Checkpoint(long offset, String partialHash, long totalSize) {}
+
+    private final Path directory;
+
+    public CheckpointStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Optional<Checkpoint> load(String key) {
+        Path file = fileFor(key);
+        if(!Files.exists(file)){
+            return Optional.empty();
+        }
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            Properties properties = new Properties();
+            properties.load(inputStream);
+            return Optional.of(new Checkpoint(
+                    Long.parseLong(properties.getProperty("offset")),
+                    properties.getProperty("partialHash"),
+                    Long.parseLong(properties.getProperty("totalSize"))));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable checkpoint for {}. Message: {}", key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    public void save(String key, Checkpoint checkpoint) {
+        Properties properties = new Properties();
+        properties.setProperty("key", key);
+        properties.setProperty("offset", Long.toString(checkpoint.offset()));
+        properties.setProperty("partialHash", checkpoint.partialHash());
+        properties.setProperty("totalSize", Long.toString(checkpoint.totalSize()));
+        try {
+            Files.createDirectories(directory);
+            Path file = fileFor(key);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(temp)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Unable to save checkpoint for {}. Message: {}", key, e.getMessage());
+        }
+    }
+
+    public void clear(String key) {
+        Util.deleteFile(fileFor(key).toString());
+    }
+
+    private Path fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash) + ".ckpt");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
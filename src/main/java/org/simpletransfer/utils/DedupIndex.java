@@ -0,0 +1,98 @@
+package org.simpletransfer.utils;
+
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remembers which file contents have already been delivered to which destination, across restarts.
+ * <p>
+ * Backed by a {@link FingerprintTable} keyed by (content hash, destination), so its size on disk and in memory never
+ * grows. A full index forgets the oldest deliveries first instead of refusing new ones.
+ * <p>
+ * Content is identified by its SHA-256, or with a tree hash chunk size by a {@link FileHasher#treeHash} over chunks of
+ * that size, which hashes one large file on every core at once. The two never match each other, so changing the mode
+ * makes earlier deliveries unknown. Only plain hashes can be taken from the download stream.
+ */
+public class DedupIndex implements AutoCloseable {
+    public static final String DEFAULT_FILE = "Staging\\DEDUP\\index.bin";
+    public static final int DEFAULT_SLOTS = 1 << 22;
+
+    private final FingerprintTable table;
+    private final long treeHashChunkSize;
+
+    /**
+     * Opens the index at file, creating it with the given number of slots (rounded up to a power of two) if it
+     * doesn't exist. An existing index keeps the size it was created with.
+     */
+    public DedupIndex(Path file, int slots) throws IOException {
+        this(file, slots, 0);
+    }
+
+    /**
+     * @param treeHashChunkSize identify content by tree hashes over chunks of this many bytes, 0 for plain hashes
+     */
+    public DedupIndex(Path file, int slots, long treeHashChunkSize) throws IOException {
+        this.table = new FingerprintTable(file, slots);
+        this.treeHashChunkSize = Math.max(0, treeHashChunkSize);
+    }
+
+    /**
+     * Hashes files on disk the way this index identifies content. Files that can't be read map to an empty Optional.
+     */
+    public Map<Path, Optional<String>> contentHashes(Collection<Path> files) {
+        if(treeHashChunkSize == 0){
+            return FileHasher.hashFiles(files, DownloadDigests.ALGORITHM);
+        }
+        // One file at a time, each is spread over every core already
+        Map<Path, Optional<String>> hashes = new LinkedHashMap<>();
+        files.forEach(file -> hashes.put(file, FileHasher.treeHash(file, DownloadDigests.ALGORITHM, treeHashChunkSize)));
+        return hashes;
+    }
+
+    /**
+     * Hashes a staged file from its mapping the way this index identifies content, or completes with the hash taken
+     * while it was downloaded when that is one. Completes exceptionally when the file can't be hashed.
+     */
+    public CompletableFuture<String> contentHash(StagedFile stagedFile, Optional<String> downloaded) {
+        if(treeHashChunkSize > 0){
+            return FileHasher.treeHash(stagedFile.segment(), DownloadDigests.ALGORITHM, treeHashChunkSize)
+                    .map(CompletableFuture::completedFuture)
+                    .orElseGet(() -> CompletableFuture.failedFuture(new IOException("Unable to tree hash " + stagedFile.name())));
+        }
+        return downloaded.map(CompletableFuture::completedFuture)
+                .orElseGet(() -> FileHasher.hashAsync(stagedFile.segment(), DownloadDigests.ALGORITHM));
+    }
+
+    /**
+     * True when content with this hash has been recorded as delivered to destination.
+     */
+    public boolean isDelivered(String contentHash, ServerConfig destination) {
+        return table.contains(key(contentHash, destination));
+    }
+
+    /**
+     * Records that content with this hash was delivered to destination.
+     */
+    public void recordDelivery(String contentHash, ServerConfig destination) {
+        table.add(key(contentHash, destination));
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    private static String key(String contentHash, ServerConfig destination) {
+        Credentials credentials = destination.credentials();
+        return contentHash + "\0" + String.join("|", credentials.type().name(), credentials.hostname(),
+                Integer.toString(credentials.port()), String.valueOf(credentials.username()), destination.folderPath());
+    }
+}
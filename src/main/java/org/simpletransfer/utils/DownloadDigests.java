@@ -0,0 +1,66 @@
+package org.simpletransfer.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Content hashes of staged files, taken from the download stream as the file was written, so deduplication doesn't
+ * read the staged file a second time. A hash only counts while the file still has the size and mtime it had when the
+ * download finished. Holds at most {@link #MAX_ENTRIES} hashes, the oldest are dropped first.
+ */
+public class DownloadDigests {
+    public static final String ALGORITHM = "SHA-256";
+    private static final int MAX_ENTRIES = 100_000;
+
+    private record Digest(long size, long modified, String hash) {}
+
+    private final Map<Path, Digest> digests = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Digest> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Remembers the {@link #ALGORITHM} hash of a file that was just downloaded in full.
+     */
+    public void record(Path file, String hash) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            synchronized (digests) {
+                digests.put(key(file), new Digest(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+            }
+        } catch (IOException ignored) {
+            // Moved on already, it will be hashed from disk if needed
+        }
+    }
+
+    /**
+     * The hash recorded for file, forgetting it. Empty when none was recorded or the file changed since.
+     */
+    public Optional<String> take(Path file) {
+        Digest digest;
+        synchronized (digests) {
+            digest = digests.remove(key(file));
+        }
+        if(digest == null){
+            return Optional.empty();
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == digest.size() && attributes.lastModifiedTime().toMillis() == digest.modified()
+                    ? Optional.of(digest.hash()) : Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,156 @@
+package org.simpletransfer.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Many small staged files sent as one zip, so they cost one upload round trip instead of one each.
+ * The files are flat entries under their own names, followed by a manifest listing each one's name, size and CRC-32,
+ * tab separated, which is what the receiving side checks before it lets any of them out.
+ */
+public class FileBundle {
+    public static final String SUFFIX = ".bundle.zip";
+    // Has a folder in it, so it can't clash with a staged file's name
+    static final String MANIFEST_ENTRY = "META-INF/bundle-manifest.tsv";
+
+    private FileBundle() {}
+
+    public static boolean isBundle(String fileName) {
+        return fileName.endsWith(SUFFIX);
+    }
+
+    public static String newName() {
+        return "bundle-" + UUID.randomUUID() + SUFFIX;
+    }
+
+    /**
+     * Splits files into consecutive groups of at most maxBytes each. A file larger than maxBytes gets a group of its own.
+     */
+    public static List<List<StagedFile>> split(List<StagedFile> files, long maxBytes) {
+        List<List<StagedFile>> bundles = new ArrayList<>();
+        List<StagedFile> current = new ArrayList<>();
+        long currentBytes = 0;
+        for (StagedFile file : files) {
+            if(!current.isEmpty() && currentBytes + file.size() > maxBytes){
+                bundles.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(file);
+            currentBytes += file.size();
+        }
+        if(!current.isEmpty()){
+            bundles.add(current);
+        }
+        return bundles;
+    }
+
+    /**
+     * Streams the files and their manifest into out as a zip, straight from their mappings, and closes it.
+     */
+    public static void write(List<StagedFile> files, OutputStream out) throws IOException {
+        Map<String, ZipEntry> written = new LinkedHashMap<>();
+        try (ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8)) {
+            // Small files don't gain much from compressing, round trips are what bundling is about
+            zip.setLevel(Deflater.BEST_SPEED);
+            for (StagedFile file : files) {
+                ZipEntry entry = new ZipEntry(file.name());
+                zip.putNextEntry(entry);
+                file.writeTo(zip);
+                zip.closeEntry();
+                written.put(file.name(), entry);
+            }
+
+            zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            Writer manifest = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+            for (ZipEntry entry : written.values()) {
+                manifest.write("%s\t%d\t%08x\n".formatted(entry.getName(), entry.getSize(), entry.getCrc()));
+            }
+            manifest.flush();
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Extracts a bundle into directory and returns the extracted files. Every file is written under a temporary name
+     * first and only renamed once the whole bundle has been read and matches its manifest, so nothing watching the
+     * directory sees a partial file, and a bad bundle leaves nothing behind.
+     */
+    public static List<Path> unpack(StagedFile bundle, Path directory) throws IOException {
+        Map<String, Path> extracted = new LinkedHashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        Map<String, Long> manifest = null;
+        try {
+            // ZipInputStream checks each entry against its CRC-32 as it is read
+            try (ZipInputStream zip = new ZipInputStream(bundle.newInputStream(), StandardCharsets.UTF_8)) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if(name.equals(MANIFEST_ENTRY)){
+                        manifest = readManifest(zip);
+                        continue;
+                    }
+                    if(!isPlainFileName(name) || extracted.containsKey(name)){
+                        throw new IOException("Unexpected entry '" + name + "' in " + bundle.name());
+                    }
+                    Path part = StagedFile.partPath(directory.resolve(name));
+                    extracted.put(name, part);
+                    sizes.put(name, Files.copy(zip, part, StandardCopyOption.REPLACE_EXISTING));
+                }
+            }
+
+            if(manifest == null || !manifest.equals(sizes)){
+                throw new IOException("Contents of " + bundle.name() + " don't match its manifest");
+            }
+
+            List<Path> files = new ArrayList<>();
+            for (Map.Entry<String, Path> part : extracted.entrySet()) {
+                Path file = directory.resolve(part.getKey());
+                Files.move(part.getValue(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                files.add(file);
+            }
+            return files;
+        } catch (IOException | RuntimeException e) {
+            for (Path part : extracted.values()) {
+                Files.deleteIfExists(part);
+            }
+            throw e;
+        }
+    }
+
+    private static Map<String, Long> readManifest(ZipInputStream zip) throws IOException {
+        Map<String, Long> manifest = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(zip, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if(fields.length != 3){
+                throw new IOException("Malformed bundle manifest line: " + line);
+            }
+            manifest.put(fields[0], Long.parseLong(fields[1]));
+        }
+        return manifest;
+    }
+
+    private static boolean isPlainFileName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") && !name.contains("/") && !name.contains("\\");
+    }
+}
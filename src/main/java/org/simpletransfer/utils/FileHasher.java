@@ -4,43 +4,308 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
+/**
+ * File hashing. Files are memory-mapped and fed to the digest a window at a time, so there is no read buffer
+ * to copy through. Many files can be hashed at once on a pool sized to the CPU count, and a single large file
+ * can be tree-hashed across that pool. Uploads and downloads can be hashed as their streams pass through, so no file
+ * is read again just for that. Besides the MessageDigest algorithms, "CRC32" is accepted wherever an algorithm name
+ * is, since some servers only offer CRC32 checksums.
+ */
 public class FileHasher {
     private static final Logger logger = LogManager.getLogger();
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    public static final String CRC32 = "CRC32";
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "file-hasher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static Optional<String> hashFile(File file, String algorithm){
         try {
-            MessageDigest digest = MessageDigest.getInstance(algorithm);
-            try (InputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192]; // 8KB buffer
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    digest.update(buffer, 0, bytesRead);
-                }
-            } catch (IOException e) {
-                logger.warn("Unable to hash file. Error: {}", e.getMessage());
-                return Optional.empty();
+            Checksum checksum = checksum(algorithm);
+            readWindows(file.toPath(), checksum::update);
+            return Optional.of(checksum.value());
+        } catch (IOException e) {
+            logger.warn("Unable to hash file. Error: {}", e.getMessage());
+            return Optional.empty();
+        } catch (NoSuchAlgorithmException e) {
+            logger.error(e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Hashes bytes that are already mapped, e.g. a {@link StagedFile}, without reading the file again.
+     */
+    private static String hash(MemorySegment segment, String algorithm) throws NoSuchAlgorithmException {
+        Checksum checksum = checksum(algorithm);
+        update(checksum::update, segment);
+        return checksum.value();
+    }
+
+    private static CompletableFuture<Optional<String>> hashFileAsync(Path file, String algorithm){
+        return CompletableFuture.supplyAsync(() -> hashFile(file.toFile(), algorithm), pool);
+    }
+
+    public static CompletableFuture<String> hashAsync(MemorySegment segment, String algorithm){
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hash(segment, algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new CompletionException(e);
             }
+        }, pool);
+    }
+
+    /**
+     * Hashes the files in parallel. Files that can't be read map to an empty Optional.
+     */
+    public static Map<Path, Optional<String>> hashFiles(Collection<Path> files, String algorithm){
+        Map<Path, CompletableFuture<Optional<String>>> futures = new LinkedHashMap<>();
+        files.forEach(file -> futures.put(file, hashFileAsync(file, algorithm)));
+        Map<Path, Optional<String>> hashes = new LinkedHashMap<>();
+        futures.forEach((file, future) -> hashes.put(file, future.join()));
+        return hashes;
+    }
+
+    /**
+     * Hashes each chunkSize chunk of the file in parallel and returns the hash of the chunk hashes concatenated in order.
+     * This is not the same value as {@link #hashFile}, both ends of a comparison have to use the same mode and chunk size.
+     */
+    public static Optional<String> treeHash(Path file, String algorithm, long chunkSize){
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             Arena arena = Arena.ofShared()) {
+            long size = channel.size();
+            return treeHash(size == 0 ? MemorySegment.NULL : channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena),
+                    algorithm, chunkSize);
+        } catch (IOException e) {
+            logger.warn("Unable to tree hash file. Error: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
 
-            byte[] hashBytes = digest.digest();
-            return Optional.of(bytesToHex(hashBytes));
+    /**
+     * Like {@link #treeHash(Path, String, long)}, for bytes that are already mapped, e.g. a {@link StagedFile}.
+     * Waits for the chunks, so it must not run on the hashing pool itself.
+     */
+    public static Optional<String> treeHash(MemorySegment segment, String algorithm, long chunkSize){
+        try {
+            List<CompletableFuture<byte[]>> chunks = new ArrayList<>();
+            for (long offset = 0; offset < segment.byteSize(); offset += chunkSize) {
+                MemorySegment chunk = segment.asSlice(offset, Math.min(chunkSize, segment.byteSize() - offset));
+                chunks.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        MessageDigest digest = MessageDigest.getInstance(algorithm);
+                        update(digest::update, chunk);
+                        return digest.digest();
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new CompletionException(e);
+                    }
+                }, pool));
+            }
+            MessageDigest root = MessageDigest.getInstance(algorithm);
+            for (CompletableFuture<byte[]> chunk : chunks) {
+                root.update(chunk.join());
+            }
+            return Optional.of(toHex(root.digest()));
+        } catch (CompletionException e) {
+            logger.warn("Unable to tree hash file. Error: {}", e.getMessage());
+            return Optional.empty();
         } catch (NoSuchAlgorithmException e) {
             logger.error(e);
             return Optional.empty();
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : bytes) {
-            hexString.append(String.format("%02x", b));
+    /**
+     * Wraps a stream that is being read anyway, like a download, so the hash of everything read through it is
+     * available from {@link DigestingInputStream#value()} once it has been read to the end.
+     */
+    public static DigestingInputStream digesting(InputStream inputStream, String algorithm) throws NoSuchAlgorithmException {
+        return new DigestingInputStream(inputStream, checksum(algorithm));
+    }
+
+    /**
+     * Wraps a stream that is being written anyway, like an upload, so the hash of everything written through it is
+     * available from {@link DigestingOutputStream#value()} afterwards.
+     */
+    public static DigestingOutputStream digesting(OutputStream outputStream, String algorithm) throws NoSuchAlgorithmException {
+        return new DigestingOutputStream(outputStream, checksum(algorithm));
+    }
+
+    public static boolean isSupported(String algorithm) {
+        try {
+            checksum(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex, StandardCharsets.ISO_8859_1);
+    }
+
+    public static final class DigestingOutputStream extends FilterOutputStream {
+        private final Checksum checksum;
+
+        private DigestingOutputStream(OutputStream out, Checksum checksum) {
+            super(out);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            checksum.update(ByteBuffer.wrap(new byte[]{(byte) b}));
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            checksum.update(ByteBuffer.wrap(buffer, offset, length));
+        }
+
+        /**
+         * Hash of everything written so far, in lower case hex. Can be asked once.
+         */
+        public String value() {
+            return checksum.value();
+        }
+    }
+
+    public static final class DigestingInputStream extends FilterInputStream {
+        private final Checksum checksum;
+
+        private DigestingInputStream(InputStream in, Checksum checksum) {
+            super(in);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if(b != -1){
+                checksum.update(ByteBuffer.wrap(new byte[]{(byte) b}));
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if(read > 0){
+                checksum.update(ByteBuffer.wrap(buffer, offset, read));
+            }
+            return read;
+        }
+
+        // Skipped bytes would be missing from the hash
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Hash of everything read so far, in lower case hex. Can be asked once.
+         */
+        public String value() {
+            return checksum.value();
+        }
+    }
+
+    /**
+     * A MessageDigest or a CRC32 behind the same two calls.
+     */
+    private interface Checksum {
+        void update(ByteBuffer buffer);
+        String value();
+    }
+
+    private static Checksum checksum(String algorithm) throws NoSuchAlgorithmException {
+        if(CRC32.equalsIgnoreCase(algorithm)){
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            return new Checksum() {
+                @Override
+                public void update(ByteBuffer buffer) {
+                    crc.update(buffer);
+                }
+
+                @Override
+                public String value() {
+                    return "%08x".formatted(crc.getValue());
+                }
+            };
+        }
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        return new Checksum() {
+            @Override
+            public void update(ByteBuffer buffer) {
+                digest.update(buffer);
+            }
+
+            @Override
+            public String value() {
+                return toHex(digest.digest());
+            }
+        };
+    }
+
+    private static void readWindows(Path file, Consumer<ByteBuffer> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long offset = 0; offset < size; offset += WINDOW_SIZE) {
+                // A confined arena per window unmaps it as soon as it has been digested
+                try (Arena arena = Arena.ofConfined()) {
+                    update(consumer, channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, size - offset), arena));
+                }
+            }
+        }
+    }
+
+    private static void update(Consumer<ByteBuffer> consumer, MemorySegment segment) {
+        for (long offset = 0; offset < segment.byteSize(); offset += WINDOW_SIZE) {
+            consumer.accept(segment.asSlice(offset, Math.min(WINDOW_SIZE, segment.byteSize() - offset)).asByteBuffer());
         }
-        return hexString.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package org.simpletransfer.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A fixed size, memory-mapped set of keys that survives restarts.
+ * <p>
+ * The file is an open-addressing hash table. Each slot holds a 128-bit fingerprint of a key and the time it was added.
+ * Lookups and inserts probe at most {@link #PROBE_WINDOW} slots. When an insert finds no free slot in its window it
+ * overwrites the oldest entry there, so a full table forgets the oldest keys first instead of refusing new ones.
+ */
+final class FingerprintTable implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final long MAGIC = 0x5354_4445_4455_5031L;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 24;
+    private static final int PROBE_WINDOW = 32;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final FileChannel channel;
+    private final Arena arena;
+    private final MemorySegment table;
+    private final long mask;
+
+    /**
+     * Opens the table at file, creating it with the given number of slots (rounded up to a power of two) if it
+     * doesn't exist. An existing table keeps the size it was created with.
+     */
+    FingerprintTable(Path file, int slots) throws IOException {
+        if(file.getParent() != null){
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.arena = Arena.ofShared();
+        try {
+            long capacity;
+            if(channel.size() >= HEADER_SIZE){
+                MemorySegment header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE, arena);
+                if(header.get(LONG, 0) != MAGIC){
+                    throw new IOException("Not a fingerprint table: " + file);
+                }
+                capacity = header.get(LONG, 8);
+            }else{
+                capacity = Long.highestOneBit(Math.max(PROBE_WINDOW, slots - 1)) << 1;
+            }
+            this.table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity * SLOT_SIZE, arena);
+            table.set(LONG, 0, MAGIC);
+            table.set(LONG, 8, capacity);
+            this.mask = capacity - 1;
+            logger.info("Opened {} with {} slots", file, capacity);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            channel.close();
+            throw e;
+        }
+    }
+
+    synchronized boolean contains(String key) {
+        long[] fingerprint = fingerprint(key);
+        long start = fingerprint[0] & mask;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            long slot = slotOffset((start + i) & mask);
+            long high = table.get(LONG, slot);
+            if(high == 0){
+                return false;
+            }
+            if(high == fingerprint[0] && table.get(LONG, slot + 8) == fingerprint[1]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void add(String key) {
+        long[] fingerprint = fingerprint(key);
+        long start = fingerprint[0] & mask;
+        long target = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            long slot = slotOffset((start + i) & mask);
+            long high = table.get(LONG, slot);
+            if(high == 0 || (high == fingerprint[0] && table.get(LONG, slot + 8) == fingerprint[1])){
+                target = slot;
+                break;
+            }
+            long addedAt = table.get(LONG, slot + 16);
+            if(addedAt < oldest){
+                oldest = addedAt;
+                target = slot;
+            }
+        }
+        table.set(LONG, target + 8, fingerprint[1]);
+        table.set(LONG, target + 16, System.currentTimeMillis());
+        // The high half marks the slot as used, write it last so a crash never leaves a half written key behind
+        table.set(LONG, target, fingerprint[0]);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        table.force();
+        arena.close();
+        channel.close();
+    }
+
+    private static long slotOffset(long index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    /**
+     * 128 bits of SHA-256(key). The high half is never 0, 0 marks an empty slot.
+     */
+    private static long[] fingerprint(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            MemorySegment hash = MemorySegment.ofArray(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+            long high = hash.get(LONG, 0);
+            return new long[]{high == 0 ? 1 : high, hash.get(LONG, 8)};
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
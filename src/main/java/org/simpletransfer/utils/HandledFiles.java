@@ -0,0 +1,40 @@
+package org.simpletransfer.utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Remembers which local source files have already been handled, across restarts, so a reconciliation scan only
+ * picks up the ones that were missed. A file is identified by its absolute path, size and mtime, so a file that is
+ * replaced or rewritten under the same name counts as new.
+ * <p>
+ * Backed by a {@link FingerprintTable}, so it never grows. A full record forgets the oldest files first, which at
+ * worst sends a long forgotten file again.
+ */
+public class HandledFiles implements AutoCloseable {
+    public static final String DEFAULT_FILE = "Staging\\HANDLED\\index.bin";
+    public static final int DEFAULT_SLOTS = 1 << 20;
+
+    private final FingerprintTable table;
+
+    public HandledFiles(Path file, int slots) throws IOException {
+        this.table = new FingerprintTable(file, slots);
+    }
+
+    public boolean isHandled(Path file, long size, long modifiedMillis) {
+        return table.contains(key(file, size, modifiedMillis));
+    }
+
+    public void markHandled(Path file, long size, long modifiedMillis) {
+        table.add(key(file, size, modifiedMillis));
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    private static String key(Path file, long size, long modifiedMillis) {
+        return file.toAbsolutePath().normalize() + "|" + size + "|" + modifiedMillis;
+    }
+}
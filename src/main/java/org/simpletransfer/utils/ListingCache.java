@@ -0,0 +1,94 @@
+package org.simpletransfer.utils;
+
+import org.simpletransfer.models.Credentials;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Remembers what each remote directory looked like the last time it was listed, so a download cycle only has to
+ * handle files that are new or changed since then, and can skip listing a directory whose mtime hasn't moved.
+ * <p>
+ * Files count as handled only once the caller says so with {@link #markHandled}, a file that failed is handed back
+ * again on the next cycle. A directory mtime is only trusted after it has been seen unchanged on two listings in a row,
+ * so a file written in the same second as a listing isn't missed on servers with one second mtime resolution.
+ */
+public class ListingCache {
+    /**
+     * @param size     size in bytes
+     * @param modified modification time in milliseconds, 0 when the server doesn't report one
+     */
+    public record Entry(long size, long modified) {}
+
+    private static final class Directory {
+        private long modified = -1;
+        private boolean confirmed;
+        private int pending;
+        private final Map<String, Entry> handled = new HashMap<>();
+    }
+
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+
+    public static String key(Credentials credentials, String path) {
+        return credentials.hostname() + ":" + credentials.port() + path;
+    }
+
+    /**
+     * True when the directory can be skipped: its mtime matches a confirmed earlier listing and
+     * every file handed out from that listing was handled. A directoryModified of -1 means unknown and never skips.
+     */
+    public boolean isUnchanged(String key, long directoryModified) {
+        Directory directory = directories.get(key);
+        if(directory == null || directoryModified < 0){
+            return false;
+        }
+        synchronized (directory) {
+            return directory.confirmed && directory.pending == 0 && directory.modified == directoryModified;
+        }
+    }
+
+    /**
+     * Records a fresh listing and returns the files in it that are new or differ in size or mtime from when they were
+     * last handled. Files that are no longer listed are forgotten.
+     */
+    public <T> List<T> changed(String key, long directoryModified, List<T> listing, Function<T, String> name, Function<T, Entry> entry) {
+        Directory directory = directories.computeIfAbsent(key, _ -> new Directory());
+        synchronized (directory) {
+            directory.confirmed = directoryModified >= 0 && directory.modified == directoryModified;
+            directory.modified = directoryModified;
+
+            Set<String> listed = new HashSet<>();
+            List<T> changed = new ArrayList<>();
+            for (T item : listing) {
+                String itemName = name.apply(item);
+                listed.add(itemName);
+                if(!entry.apply(item).equals(directory.handled.get(itemName))){
+                    changed.add(item);
+                }
+            }
+            directory.handled.keySet().retainAll(listed);
+            directory.pending = changed.size();
+            return changed;
+        }
+    }
+
+    /**
+     * Marks a file returned by {@link #changed} as done, so it isn't handed back until it changes.
+     */
+    public void markHandled(String key, String name, Entry entry) {
+        Directory directory = directories.get(key);
+        if(directory == null){
+            return;
+        }
+        synchronized (directory) {
+            directory.handled.put(name, entry);
+            directory.pending = Math.max(0, directory.pending - 1);
+        }
+    }
+}
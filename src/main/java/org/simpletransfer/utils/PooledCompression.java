@@ -0,0 +1,152 @@
+package org.simpletransfer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming zlib and gzip compression on Deflaters and Inflaters taken from a pool instead of created per stream.
+ * Each one holds a fair amount of native memory that is only freed by end() or a GC, so creating one per transfer
+ * adds up quickly. Closing a stream resets its Deflater or Inflater and hands it back.
+ * Only a buffer's worth of data is held at any time, a file is never compressed in memory as a whole.
+ */
+public class PooledCompression {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IDLE = 64;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final BlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(MAX_IDLE);
+    private static final BlockingQueue<Deflater> rawDeflaters = new ArrayBlockingQueue<>(MAX_IDLE);
+    private static final BlockingQueue<Inflater> zlibInflaters = new ArrayBlockingQueue<>(MAX_IDLE);
+
+    private PooledCompression() {}
+
+    /**
+     * Compresses everything written into out in zlib format, as MODE Z sends it.
+     */
+    public static OutputStream deflate(OutputStream out) {
+        Deflater deflater = deflater(zlibDeflaters, false);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if(!released){
+                        released = true;
+                        release(deflater, zlibDeflaters);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Decompresses zlib data read from in, as MODE Z receives it.
+     */
+    public static InputStream inflate(InputStream in) {
+        Inflater inflater = zlibInflaters.poll();
+        Inflater pooled = inflater != null ? inflater : new Inflater();
+        return new InflaterInputStream(in, pooled, BUFFER_SIZE) {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if(!released){
+                        released = true;
+                        pooled.reset();
+                        if(!zlibInflaters.offer(pooled)){
+                            pooled.end();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Compresses everything written into out as a gzip file.
+     */
+    public static OutputStream gzip(OutputStream out) throws IOException {
+        return new GzipOutputStream(out, deflater(rawDeflaters, true));
+    }
+
+    private static Deflater deflater(BlockingQueue<Deflater> pool, boolean nowrap) {
+        Deflater deflater = pool.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    }
+
+    private static void release(Deflater deflater, BlockingQueue<Deflater> pool) {
+        deflater.reset();
+        if(!pool.offer(deflater)){
+            deflater.end();
+        }
+    }
+
+    /**
+     * GZIPOutputStream always creates its own Deflater, this one takes a raw one from the pool and adds the gzip
+     * header and trailer around its output itself.
+     */
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean released;
+
+        private GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, BUFFER_SIZE);
+            try {
+                out.write(GZIP_HEADER);
+            } catch (IOException e) {
+                release(deflater, rawDeflaters);
+                released = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            super.write(buffer, offset, length);
+            crc.update(buffer, offset, length);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if(!def.finished()){
+                super.finish();
+                byte[] trailer = new byte[8];
+                writeIntLE(trailer, 0, (int) crc.getValue());
+                writeIntLE(trailer, 4, (int) def.getBytesRead());
+                out.write(trailer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if(!released){
+                    released = true;
+                    release(def, rawDeflaters);
+                }
+            }
+        }
+
+        private static void writeIntLE(byte[] buffer, int offset, int value) {
+            for (int i = 0; i < 4; i++) {
+                buffer[offset + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.simpletransfer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A staged file mapped into memory once and shared by every destination it goes to.
+ * Each reader gets its own position over the same mapping, so the file is read from disk at most once
+ * and no destination keeps a heap copy of it. Closing unmaps the file straight away rather than at the next GC.
+ */
+public class StagedFile implements AutoCloseable {
+    /**
+     * Downloads are written under the final name plus this suffix and only renamed once complete.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    public StagedFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.arena = Arena.ofShared();
+        try {
+            long size = channel.size();
+            this.segment = size == 0 ? MemorySegment.ofArray(new byte[0]) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the staging folder entry is a download still in progress, or one that failed and waits to be resumed.
+     */
+    public static boolean isPartial(String fileName) {
+        return fileName.endsWith(PART_SUFFIX);
+    }
+
+    public static Path partPath(Path file) {
+        return file.resolveSibling(file.getFileName() + PART_SUFFIX);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public String name() {
+        return path.getFileName().toString();
+    }
+
+    public long size() {
+        return segment.byteSize();
+    }
+
+    /**
+     * The mapped bytes, valid until this file is closed.
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * A new stream over the mapping, starting at offset. Streams are independent of each other
+     * and may be read from different threads at the same time.
+     */
+    public InputStream newInputStream(long offset) {
+        return new InputStream() {
+            private long position = offset;
+
+            @Override
+            public int read() {
+                if(position >= segment.byteSize()) return -1;
+                return segment.get(ValueLayout.JAVA_BYTE, position++) & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                long remaining = segment.byteSize() - position;
+                if(remaining <= 0) return -1;
+                int count = (int) Math.min(len, remaining);
+                MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, segment.byteSize() - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, segment.byteSize() - position));
+            }
+        };
+    }
+
+    public InputStream newInputStream() {
+        return newInputStream(0);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try (InputStream inputStream = newInputStream()) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * Copies the file into the given directory with FileChannel.transferTo, which lets the OS move the bytes
+     * without passing them through the JVM.
+     */
+    public void copyTo(Path directory) throws IOException {
+        try (FileChannel target = FileChannel.open(directory.resolve(name()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        arena.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,71 @@
+package org.simpletransfer.utils;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits a byte rate. Tokens refill at bytesPerSecond up to one second's worth, which is the largest burst allowed.
+ * <p>
+ * Taking more tokens than are available puts the bucket in debt and the caller sleeps until the debt is paid back,
+ * so callers are served in the order they asked and a large request doesn't have to wait for the bucket to fill first.
+ * The lock is never held while sleeping, which keeps it safe for virtual threads.
+ */
+public class TokenBucket {
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Lowers the rate to bytesPerSecond if that is below the current one.
+     */
+    public void limitTo(long bytesPerSecond) {
+        lock.lock();
+        try {
+            if(bytesPerSecond < this.bytesPerSecond){
+                refill(System.nanoTime());
+                this.bytesPerSecond = bytesPerSecond;
+                tokens = Math.min(tokens, bytesPerSecond);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes bytes tokens, sleeping for as long as that overdraws the bucket. Returns early when interrupted,
+     * with the interrupt flag set.
+     */
+    public void acquire(long bytes) {
+        long waitNanos;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1_000_000_000d / bytesPerSecond) : 0;
+        } finally {
+            lock.unlock();
+        }
+
+        long deadline = System.nanoTime() + waitNanos;
+        while (waitNanos > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = deadline - System.nanoTime();
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * (bytesPerSecond / 1_000_000_000d));
+        lastRefillNanos = now;
+    }
+}
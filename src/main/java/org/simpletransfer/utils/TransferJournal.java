@@ -0,0 +1,356 @@
+package org.simpletransfer.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.ServerConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Append-only write-ahead journal of what has happened to each staged file: downloaded, uploaded to each
+ * destination, archived and deleted from the source. After a crash it tells which of those steps still have to run.
+ * <p>
+ * Records are queued and written by one thread, which takes everything queued since its last write, writes it in
+ * one go and syncs once. Callers that need a record on disk wait on the future the record methods return or on
+ * {@link #sync()}, so concurrent transfers share syncs instead of paying for one per file.
+ * <p>
+ * Each line carries a CRC32, so a line torn by a crash is recognised and dropped on replay. The journal is rewritten
+ * with only the unfinished files when it is opened and whenever it grows past {@link #COMPACT_THRESHOLD}.
+ */
+public class TransferJournal implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger();
+    public static final String DEFAULT_FILE = "Staging\\JOURNAL\\transfer.journal";
+    private static final long COMPACT_THRESHOLD = 64L * 1024 * 1024;
+
+    public enum Step { DOWNLOADED, UPLOADED, ARCHIVED, SOURCE_DELETED, STAGED }
+
+    /**
+     * A source file as it was when it was downloaded. size is -1 when the journal doesn't know, for records written
+     * before sizes were journaled.
+     */
+    public record Downloaded(String fileName, long size, long modifiedMillis) {}
+
+    /**
+     * step is null for a sync barrier, which is written as nothing. detail is the destination for UPLOADED and the
+     * source file's size and mtime for DOWNLOADED.
+     */
+    private record Entry(Step step, String source, String file, String detail, CompletableFuture<Void> written) {}
+
+    private static final class FileState {
+        private boolean downloaded;
+        private String downloadedDetail = "";
+        private boolean sourceDeleted;
+        private boolean archived;
+        private final Set<String> uploadedTo = new HashSet<>();
+
+        private boolean isComplete() {
+            return archived && (!downloaded || sourceDeleted);
+        }
+    }
+
+    private final Path file;
+    private final Map<String, FileState> states = new ConcurrentHashMap<>();
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Entry closeMarker = new Entry(null, null, null, null, new CompletableFuture<>());
+    private final Thread writer;
+    private FileChannel channel;
+
+    /**
+     * Opens the journal at file, creating it if it doesn't exist, and replays it.
+     */
+    public TransferJournal(Path file) throws IOException {
+        this.file = file;
+        if(file.getParent() != null){
+            Files.createDirectories(file.getParent());
+        }
+        int replayed = replay();
+        compact();
+        logger.info("Opened transfer journal {}. Replayed {} record(s), {} file(s) unfinished", file, replayed, states.size());
+        this.writer = Thread.ofPlatform().name("transfer-journal").daemon().start(this::run);
+    }
+
+    /**
+     * The file, which had size and modifiedMillis on the source, has been downloaded completely into staging.
+     * Anything journaled for an earlier file with the same name is forgotten.
+     */
+    public CompletableFuture<Void> downloaded(String source, String fileName, long size, long modifiedMillis) {
+        return append(Step.DOWNLOADED, source, fileName, size + "|" + modifiedMillis);
+    }
+
+    /**
+     * A new copy of the file has been downloaded into staging, by any client, journaled or not. Its uploads and
+     * archiving start over, so destinations that got an earlier copy get this one too. Whether the source copy still
+     * has to be deleted is kept as it is.
+     */
+    public CompletableFuture<Void> staged(String source, String fileName) {
+        return append(Step.STAGED, source, fileName, "");
+    }
+
+    public CompletableFuture<Void> uploaded(String source, String fileName, ServerConfig destination) {
+        return append(Step.UPLOADED, source, fileName, destinationKey(destination));
+    }
+
+    public CompletableFuture<Void> archived(String source, String fileName) {
+        return append(Step.ARCHIVED, source, fileName, "");
+    }
+
+    public CompletableFuture<Void> sourceDeleted(String source, String fileName) {
+        return append(Step.SOURCE_DELETED, source, fileName, "");
+    }
+
+    /**
+     * True when the file has been journaled as uploaded to destination since it was last downloaded.
+     */
+    public boolean isUploaded(String source, String fileName, ServerConfig destination) {
+        FileState state = states.get(key(source, fileName));
+        if(state == null){
+            return false;
+        }
+        synchronized (state) {
+            return state.uploadedTo.contains(destinationKey(destination));
+        }
+    }
+
+    /**
+     * Files from source that were downloaded but never deleted from it.
+     */
+    public List<Downloaded> pendingSourceDeletes(String source) {
+        List<Downloaded> pending = new ArrayList<>();
+        String prefix = escape(source) + "\t";
+        states.forEach((key, state) -> {
+            synchronized (state) {
+                if(key.startsWith(prefix) && state.downloaded && !state.sourceDeleted){
+                    String[] sizeAndModified = state.downloadedDetail.split("\\|");
+                    pending.add(sizeAndModified.length == 2
+                            ? new Downloaded(unescape(key.substring(prefix.length())), Long.parseLong(sizeAndModified[0]), Long.parseLong(sizeAndModified[1]))
+                            : new Downloaded(unescape(key.substring(prefix.length())), -1, -1));
+                }
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Waits until everything appended so far is on disk.
+     */
+    public void sync() {
+        Entry barrier = new Entry(null, null, null, null, new CompletableFuture<>());
+        queue.add(barrier);
+        barrier.written().join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        queue.add(closeMarker);
+        closeMarker.written().join();
+    }
+
+    private CompletableFuture<Void> append(Step step, String source, String fileName, String detail) {
+        Entry entry = new Entry(step, source, fileName, detail, new CompletableFuture<>());
+        apply(entry);
+        queue.add(entry);
+        return entry.written();
+    }
+
+    private void apply(Entry entry) {
+        states.compute(key(entry.source(), entry.file()), (_, current) -> {
+            FileState state = current == null || entry.step() == Step.DOWNLOADED ? new FileState() : current;
+            synchronized (state) {
+                switch (entry.step()) {
+                    case DOWNLOADED -> {
+                        state.downloaded = true;
+                        state.downloadedDetail = entry.detail();
+                    }
+                    case UPLOADED -> state.uploadedTo.add(entry.detail());
+                    case ARCHIVED -> state.archived = true;
+                    case SOURCE_DELETED -> state.sourceDeleted = true;
+                    case STAGED -> {
+                        state.uploadedTo.clear();
+                        state.archived = false;
+                    }
+                }
+                return state.isComplete() ? null : state;
+            }
+        });
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            StringBuilder lines = new StringBuilder();
+            for (Entry entry : batch) {
+                if(entry.step() != null){
+                    lines.append(format(entry));
+                }
+            }
+            try {
+                if(!lines.isEmpty()){
+                    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+                batch.forEach(entry -> entry.written().complete(null));
+                if(channel.size() > COMPACT_THRESHOLD){
+                    compact();
+                }
+            } catch (IOException e) {
+                logger.error("Error writing the transfer journal. Message: {}", e.getMessage());
+                batch.forEach(entry -> entry.written().completeExceptionally(e));
+            }
+
+            if(batch.contains(closeMarker)){
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.error("Error closing the transfer journal. Message: {}", e.getMessage());
+                }
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Rebuilds the file states from the journal. Stops at the first line that doesn't check out, which can only be
+     * the last one, torn by a crash.
+     */
+    private int replay() throws IOException {
+        if(!Files.exists(file)){
+            return 0;
+        }
+        int replayed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = parse(line);
+                if(entry == null){
+                    logger.warn("Ignoring a torn record at the end of transfer journal {}", file);
+                    break;
+                }
+                apply(entry);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Replaces the journal with one that holds only the unfinished files and reopens it for appending.
+     */
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        states.forEach((key, state) -> {
+            String[] sourceAndFile = key.split("\t", 2);
+            String source = unescape(sourceAndFile[0]);
+            String fileName = unescape(sourceAndFile[1]);
+            synchronized (state) {
+                if(state.downloaded){
+                    lines.append(format(Step.DOWNLOADED, source, fileName, state.downloadedDetail));
+                }
+                state.uploadedTo.forEach(destination -> lines.append(format(Step.UPLOADED, source, fileName, destination)));
+                if(state.archived){
+                    lines.append(format(Step.ARCHIVED, source, fileName, ""));
+                }
+                if(state.sourceDeleted){
+                    lines.append(format(Step.SOURCE_DELETED, source, fileName, ""));
+                }
+            }
+        });
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                compacted.write(buffer);
+            }
+            compacted.force(true);
+        }
+        if(channel != null){
+            channel.close();
+        }
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static String format(Entry entry) {
+        return format(entry.step(), entry.source(), entry.file(), entry.detail());
+    }
+
+    private static String format(Step step, String source, String fileName, String detail) {
+        String body = String.join("\t", step.name(), escape(source), escape(fileName), escape(detail));
+        return body + "\t" + crc(body) + "\n";
+    }
+
+    private static Entry parse(String line) {
+        int last = line.lastIndexOf('\t');
+        if(last < 0 || !line.substring(last + 1).equals(crc(line.substring(0, last)))){
+            return null;
+        }
+        String[] fields = line.substring(0, last).split("\t", -1);
+        if(fields.length != 4){
+            return null;
+        }
+        try {
+            return new Entry(Step.valueOf(fields[0]), unescape(fields[1]), unescape(fields[2]), unescape(fields[3]), null);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return "%08x".formatted(crc.getValue());
+    }
+
+    /**
+     * Keeps tabs and line breaks in names from breaking the line format.
+     */
+    private static String escape(String value) {
+        return value.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("%0D", "\r").replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+    }
+
+    private static String key(String source, String fileName) {
+        return escape(source) + "\t" + escape(fileName);
+    }
+
+    private static String destinationKey(ServerConfig destination) {
+        Credentials credentials = destination.credentials();
+        return String.join("|", credentials.type().name(), credentials.hostname(), Integer.toString(credentials.port()),
+                String.valueOf(credentials.username()), destination.folderPath());
+    }
+}
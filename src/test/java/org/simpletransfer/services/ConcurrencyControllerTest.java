@@ -0,0 +1,46 @@
+package org.simpletransfer.services;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.Test;
+import org.simpletransfer.models.CredentialType;
+import org.simpletransfer.models.Credentials;
+import org.simpletransfer.models.Priority;
+import org.simpletransfer.models.ServerConfig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConcurrencyControllerTest {
+    private static final ServerConfig DESTINATION = new ServerConfig(
+            new Credentials(CredentialType.FTP, "destination", 21, "user", "secret"), "/in", null);
+    private static final ConcurrencyController.Share SHARE = new ConcurrencyController.Share("source", Priority.NORMAL, 1);
+
+    @Test
+    void failureAfterSuccessCutsTheLimit() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(LogManager.getLogger(), 8);
+
+        controller.release(controller.acquire(DESTINATION, SHARE, 1), 1, true);
+        assertEquals(ConcurrencyController.INITIAL_LIMIT, limit(controller));
+
+        controller.release(controller.acquire(DESTINATION, SHARE, 1), 1, false);
+        assertEquals(1, limit(controller));
+    }
+
+    @Test
+    void transfersStartedBeforeACutDoNotCutAgain() throws Exception {
+        ConcurrencyController controller = new ConcurrencyController(LogManager.getLogger(), 8);
+        for (int i = 0; i < 6; i++) {
+            controller.release(controller.acquire(DESTINATION, SHARE, 1), 1, true);
+        }
+        assertEquals(4, limit(controller));
+
+        ConcurrencyController.Ticket first = controller.acquire(DESTINATION, SHARE, 1);
+        ConcurrencyController.Ticket second = controller.acquire(DESTINATION, SHARE, 1);
+        controller.release(first, 1, false);
+        controller.release(second, 1, false);
+        assertEquals(2, limit(controller));
+    }
+
+    private static int limit(ConcurrencyController controller) {
+        return controller.snapshot().get("destination:21").limit();
+    }
+}